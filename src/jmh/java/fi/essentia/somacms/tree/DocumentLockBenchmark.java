@@ -0,0 +1,113 @@
+package fi.essentia.somacms.tree;
+
+import com.google.common.util.concurrent.Striped;
+import fi.essentia.somacms.dao.ChangeLogDao;
+import fi.essentia.somacms.dao.ContentCache;
+import fi.essentia.somacms.dao.DataDao;
+import fi.essentia.somacms.dao.DocumentDao;
+import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Uploads new versions of different documents from several threads, each database call taking a millisecond, and
+ * compares the throughput of the striped document locks with a single lock for all the writes. Run with the benchmark
+ * profile, see pom.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@Threads(8)
+public class DocumentLockBenchmark {
+    private static final long FOLDER_ID = 1;
+
+    @Param({"1", "1024"})
+    int lockStripes;
+
+    @Param({"32"})
+    int documents;
+
+    private DocumentManagerImpl documentManager;
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void createDocuments() throws ParseException {
+        documentManager = documentManager();
+        documentManager.documentLocks = Striped.lock(lockStripes);
+        DatabaseDocument folder = new DatabaseDocument(FOLDER_ID, "folder", true);
+        folder.setParentId(TreeDocument.ROOT_ID);
+        when(documentManager.documentDao.findAll()).thenReturn(Arrays.asList(new DatabaseDocument(TreeDocument.ROOT_ID, "root", true), folder));
+        documentManager.initialize();
+        for (int i = 0; i < documents; i++) {
+            documentManager.storeDocument(FOLDER_ID, "page" + i + ".html", new byte[0]);
+        }
+    }
+
+    @Benchmark
+    public TreeDocument storeDocument() throws ParseException {
+        int write = writes.incrementAndGet();
+        return documentManager.storeDocument(FOLDER_ID, "page" + write % documents + ".html", ("<p>" + write + "</p>").getBytes());
+    }
+
+    private static DocumentManagerImpl documentManager() {
+        final AtomicLong lastId = new AtomicLong(100);
+        Answer<Object> slow = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(1);
+                return null;
+            }
+        };
+
+        DocumentManagerImpl documentManager = new DocumentManagerImpl();
+        documentManager.documentDao = mock(DocumentDao.class);
+        documentManager.dataDao = mock(DataDao.class);
+        documentManager.versionDao = mock(VersionDao.class);
+        documentManager.contentCache = mock(ContentCache.class);
+        documentManager.changeLogDao = mock(ChangeLogDao.class);
+        when(documentManager.changeLogDao.currentTime()).thenReturn(new Date());
+        when(documentManager.documentDao.save(any(DatabaseDocument.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                DatabaseDocument document = (DatabaseDocument) invocation.getArguments()[0];
+                document.setId(lastId.incrementAndGet());
+                return document.getId();
+            }
+        });
+        doAnswer(slow).when(documentManager.documentDao).lockById(anyLong());
+        doAnswer(slow).when(documentManager.versionDao).insertVersion(anyLong(), anyInt(), any(Date.class));
+        doAnswer(slow).when(documentManager.dataDao).updateData(anyLong(), anyInt(), any(byte[].class));
+        return documentManager;
+    }
+}
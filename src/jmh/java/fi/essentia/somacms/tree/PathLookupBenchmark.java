@@ -0,0 +1,89 @@
+package fi.essentia.somacms.tree;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares resolving a request path with the full path map of DocumentManagerImpl against walking the tree one name
+ * at a time, which is how documentFromPath worked before the map. The default tree has 11,111 documents with the
+ * files four levels below the root and ten children per folder. The paths are passed without the leading slash, like
+ * CmsController does. Run with the benchmark profile to get the allocations per lookup as well, see pom.xml:
+ *
+ *     mvn -P benchmark integration-test -Djmh.args="PathLookupBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathLookupBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Param({"11111"})
+    int documents;
+
+    @Param({"4"})
+    int depth;
+
+    @Param({"10"})
+    int fanOut;
+
+    @Param({"12"})
+    int nameLength;
+
+    private DocumentManagerImpl documentManager;
+    private TreeDocument root;
+    private String[] paths;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildTree() {
+        SyntheticTree tree = new SyntheticTree(documents, depth, fanOut, nameLength);
+        documentManager = tree.documentManager();
+        root = documentManager.documentById(TreeDocument.ROOT_ID);
+        List<TreeDocument> sample = SyntheticTree.sample(documentManager, tree.getDocuments(), SAMPLE_SIZE);
+        paths = new String[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            paths[i] = sample.get(i).getPath().substring(1);
+        }
+    }
+
+    private int next() {
+        next = (next + 1) & (SAMPLE_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public TreeDocument pathMap() {
+        return documentManager.documentFromPath(paths[next()]);
+    }
+
+    /**
+     * The children are no longer looked up under a lock, so this is somewhat faster than the original walk was
+     */
+    @Benchmark
+    public TreeDocument treeWalk() {
+        TreeDocument document = root;
+        for (String name : paths[next()].split("/")) {
+            document = document.childByName(name);
+            if (document == null) {
+                return null;
+            }
+        }
+        return document;
+    }
+}
@@ -0,0 +1,100 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.dao.ChangeLogDao;
+import fi.essentia.somacms.dao.ContentCache;
+import fi.essentia.somacms.dao.DataDao;
+import fi.essentia.somacms.dao.DocumentDao;
+import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds a document tree of the given shape for the benchmarks. The folders are filled breadth first with fanOut
+ * children each, folders down to the given depth and files at the bottom, until there are as many documents as
+ * requested. If the depth runs out first, the folders at the bottom get more files in turns.
+ */
+public class SyntheticTree {
+    private final List<DatabaseDocument> documents = new ArrayList<DatabaseDocument>();
+
+    public SyntheticTree(int count, int depth, int fanOut, int nameLength) {
+        DatabaseDocument root = new DatabaseDocument(TreeDocument.ROOT_ID, "root", true);
+        documents.add(root);
+
+        LinkedList<DatabaseDocument> folders = new LinkedList<DatabaseDocument>();
+        List<DatabaseDocument> bottom = new ArrayList<DatabaseDocument>();
+        folders.add(root);
+        LinkedList<Integer> folderLevels = new LinkedList<Integer>();
+        folderLevels.add(0);
+        while (documents.size() < count && !folders.isEmpty()) {
+            DatabaseDocument parent = folders.removeFirst();
+            int level = folderLevels.removeFirst();
+            boolean folder = level + 1 < depth;
+            if (!folder) {
+                bottom.add(parent);
+            }
+            for (int i = 0; i < fanOut && documents.size() < count; i++) {
+                DatabaseDocument child = add(parent, folder, nameLength);
+                if (folder) {
+                    folders.add(child);
+                    folderLevels.add(level + 1);
+                }
+            }
+        }
+        for (int i = 0; documents.size() < count; i++) {
+            add(bottom.get(i % bottom.size()), false, nameLength);
+        }
+    }
+
+    private DatabaseDocument add(DatabaseDocument parent, boolean folder, int nameLength) {
+        long id = documents.size() + 1;
+        String name = StringUtils.leftPad(Long.toString(id, 36), nameLength, 'n') + (folder ? "" : ".html");
+        DatabaseDocument document = new DatabaseDocument(id, name, folder);
+        document.setParentId(parent.getId());
+        // Not text, so that the content indexer doesn't run in the background
+        document.setMimeType(folder ? null : "application/octet-stream");
+        document.setModified(new Date(0));
+        documents.add(document);
+        return document;
+    }
+
+    public List<DatabaseDocument> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * A document manager on top of the tree with every DAO mocked
+     */
+    public DocumentManagerImpl documentManager() {
+        DocumentManagerImpl documentManager = new DocumentManagerImpl();
+        documentManager.documentDao = mock(DocumentDao.class);
+        documentManager.dataDao = mock(DataDao.class);
+        documentManager.versionDao = mock(VersionDao.class);
+        documentManager.contentCache = mock(ContentCache.class);
+        documentManager.changeLogDao = mock(ChangeLogDao.class);
+        when(documentManager.changeLogDao.currentTime()).thenReturn(new Date());
+        when(documentManager.documentDao.findAll()).thenReturn(documents);
+        documentManager.initialize();
+        return documentManager;
+    }
+
+    /**
+     * Picks the given number of the documents at random, always the same ones for the same tree
+     */
+    public static List<TreeDocument> sample(DocumentManager documentManager, List<DatabaseDocument> documents, int count) {
+        Random random = new Random(count);
+        List<TreeDocument> sample = new ArrayList<TreeDocument>(count);
+        for (int i = 0; i < count; i++) {
+            sample.add(documentManager.documentById(documents.get(1 + random.nextInt(documents.size() - 1)).getId()));
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,108 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups of the in-memory document tree on synthetic trees of different sizes and shapes. Each
+ * invocation works on the next one of a fixed random sample of the documents, so that the results don't depend on
+ * a single lucky path. Run with the benchmark profile, see pom.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TreeBenchmark {
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int documents;
+
+    @Param({"6"})
+    int depth;
+
+    @Param({"16"})
+    int fanOut;
+
+    @Param({"12"})
+    int nameLength;
+
+    private DocumentManagerImpl documentManager;
+    private TreeDocument[] sample;
+    private String[] paths;
+    private String[] names;
+    private TreeDocument[] parents;
+    private TreeDocument[] newChildren;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildTree() {
+        SyntheticTree tree = new SyntheticTree(documents, depth, fanOut, nameLength);
+        documentManager = tree.documentManager();
+        List<TreeDocument> documents = SyntheticTree.sample(documentManager, tree.getDocuments(), SAMPLE_SIZE);
+        sample = documents.toArray(new TreeDocument[SAMPLE_SIZE]);
+        paths = new String[SAMPLE_SIZE];
+        names = new String[SAMPLE_SIZE];
+        parents = new TreeDocument[SAMPLE_SIZE];
+        newChildren = new TreeDocument[SAMPLE_SIZE];
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            paths[i] = sample[i].getPath();
+            names[i] = sample[i].getName();
+            parents[i] = sample[i].getParent();
+            newChildren[i] = new TreeDocument(new DatabaseDocument(-1 - i, "new-" + i + ".html", false));
+        }
+    }
+
+    private int next() {
+        next = (next + 1) & (SAMPLE_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public TreeDocument documentFromPath() {
+        return documentManager.documentFromPath(paths[next()]);
+    }
+
+    @Benchmark
+    public String getPath() {
+        return sample[next()].getPath();
+    }
+
+    @Benchmark
+    public List<TreeDocument> documentsByPath() {
+        return documentManager.documentsByPath(names[next()], 50);
+    }
+
+    @Benchmark
+    public TreeDocument childByName() {
+        int i = next();
+        return parents[i].childByName(names[i]);
+    }
+
+    /**
+     * Removes the child right away, so that the folders keep their size
+     */
+    @Benchmark
+    public TreeDocument addChild() {
+        int i = next();
+        parents[i].addChild(newChildren[i]);
+        parents[i].removeChild(newChildren[i]);
+        return newChildren[i];
+    }
+}
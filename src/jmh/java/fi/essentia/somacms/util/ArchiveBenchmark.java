@@ -0,0 +1,122 @@
+package fi.essentia.somacms.util;
+
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.tree.SyntheticTree;
+import fi.essentia.somacms.tree.TreeDocument;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures exporting a whole synthetic tree as a ZIP archive, every file having the same small HTML page as its
+ * contents. The archive is thrown away as it's written, so only the tree walk, the prefetching and the compression
+ * are measured. Run with the benchmark profile, see pom.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ArchiveBenchmark {
+    @Param({"1000", "10000", "100000"})
+    int documents;
+
+    @Param({"6"})
+    int depth;
+
+    @Param({"16"})
+    int fanOut;
+
+    @Param({"2048"})
+    int fileSize;
+
+    private ArchiveHelper archiveHelper;
+    private TreeDocument root;
+
+    @Setup(Level.Trial)
+    public void buildTree() {
+        SyntheticTree tree = new SyntheticTree(documents, depth, fanOut, 12);
+        root = tree.documentManager().documentById(TreeDocument.ROOT_ID);
+        archiveHelper = new ArchiveHelper();
+        archiveHelper.readOnlyDataDao = new ConstantDataDao(fileSize);
+        archiveHelper.initialize();
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() {
+        archiveHelper.destroy();
+    }
+
+    @Benchmark
+    public TreeDocument writeArchive() throws IOException {
+        archiveHelper.writeArchive(root, new NullOutputStream());
+        return root;
+    }
+
+    /**
+     * Not a Mockito mock, which would remember every call
+     */
+    private static class ConstantDataDao implements ReadOnlyDataDao {
+        private final byte[] data;
+
+        private ConstantDataDao(int size) {
+            data = new byte[size];
+            byte[] page = "<html><body><p>Lorem ipsum dolor sit amet</p></body></html>\n".getBytes();
+            for (int i = 0; i < size; i++) {
+                data[i] = page[i % page.length];
+            }
+        }
+
+        @Override
+        public byte[] loadData(long documentId, int documentVersion) {
+            return Arrays.copyOf(data, data.length);
+        }
+
+        @Override
+        public void writeData(long documentId, int documentVersion, OutputStream out) throws IOException {
+            out.write(data);
+        }
+
+        @Override
+        public void writeData(long documentId, int documentVersion, long offset, long length, OutputStream out) throws IOException {
+            out.write(data, (int) offset, (int) Math.min(length, data.length - offset));
+        }
+
+        @Override
+        public long dataSize(long documentId, int documentVersion) {
+            return data.length;
+        }
+
+        @Override
+        public byte[] loadCompressedData(long documentId, int documentVersion) {
+            return null;
+        }
+
+        @Override
+        public void writeCompressedData(long documentId, int documentVersion, OutputStream out) {
+        }
+
+        @Override
+        public File dataFile(long documentId, int documentVersion) {
+            return null;
+        }
+    }
+}
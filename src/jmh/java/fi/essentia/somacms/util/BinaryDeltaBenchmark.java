@@ -0,0 +1,154 @@
+package fi.essentia.somacms.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores an edit history of an HTML page the way DocumentManagerImpl stores text versions, and measures encoding a
+ * version as a delta and rebuilding a version from the full copy before it. How much space the deltas save is printed
+ * when the history is built. Run with the benchmark profile, see pom.xml.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryDeltaBenchmark {
+    private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor " +
+            "incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud exercitation ullamco laboris " +
+            "nisi aliquip ex ea commodo consequat").split(" ");
+
+    @Param({"500"})
+    int versions;
+
+    @Param({"4", "16", "64"})
+    int fullInterval;
+
+    private List<byte[]> history;
+    private byte[][] stored;
+    private boolean[] isDelta;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildHistory() {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            lines.add(paragraph(random));
+        }
+        history = new ArrayList<byte[]>();
+        for (int i = 0; i < versions; i++) {
+            history.add(page(lines));
+            edit(lines, random);
+        }
+
+        // Same rules as DocumentManagerImpl.archiveCurrentVersion, versions numbered from 1
+        stored = new byte[versions][];
+        isDelta = new boolean[versions];
+        long fullBytes = 0;
+        long storedBytes = 0;
+        for (int i = 0; i < versions; i++) {
+            byte[] version = history.get(i);
+            stored[i] = version;
+            if (i % fullInterval != 0) {
+                byte[] delta = BinaryDelta.encode(history.get(i - 1), version);
+                if (delta.length <= version.length / 2) {
+                    stored[i] = delta;
+                    isDelta[i] = true;
+                }
+            }
+            fullBytes += version.length;
+            storedBytes += stored[i].length;
+        }
+        for (int i = 0; i < versions; i++) {
+            if (!Arrays.equals(rebuild(i), history.get(i))) {
+                throw new IllegalStateException("Version " + i + " wasn't rebuilt exactly");
+            }
+        }
+        System.out.printf("%nStored %d kB of %d versions of a %d kB page instead of %d kB, %.1f%% of the full copies%n",
+                storedBytes / 1024, versions, history.get(0).length / 1024, fullBytes / 1024, 100.0 * storedBytes / fullBytes);
+    }
+
+    private int next() {
+        next = next + 1 < versions ? next + 1 : 1;
+        return next;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        int version = next();
+        return BinaryDelta.encode(history.get(version - 1), history.get(version));
+    }
+
+    @Benchmark
+    public byte[] rebuild() {
+        return rebuild(next());
+    }
+
+    private byte[] rebuild(int version) {
+        int base = version;
+        while (isDelta[base]) {
+            base--;
+        }
+        byte[] bytes = stored[base];
+        for (int i = base + 1; i <= version; i++) {
+            bytes = BinaryDelta.apply(bytes, stored[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Mostly small changes within a paragraph, sometimes a paragraph added or removed
+     */
+    private static void edit(List<String> lines, Random random) {
+        int index = random.nextInt(lines.size());
+        int kind = random.nextInt(10);
+        if (kind < 7) {
+            String[] words = lines.get(index).split(" ");
+            words[random.nextInt(words.length)] = WORDS[random.nextInt(WORDS.length)];
+            StringBuilder line = new StringBuilder();
+            for (String word : words) {
+                line.append(line.length() == 0 ? "" : " ").append(word);
+            }
+            lines.set(index, line.toString());
+        } else if (kind < 9) {
+            lines.add(index, paragraph(random));
+        } else if (lines.size() > 1) {
+            lines.remove(index);
+        }
+    }
+
+    private static String paragraph(Random random) {
+        StringBuilder paragraph = new StringBuilder("<p>");
+        int words = 10 + random.nextInt(20);
+        for (int i = 0; i < words; i++) {
+            paragraph.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return paragraph.append("</p>").toString();
+    }
+
+    private static byte[] page(List<String> lines) {
+        StringBuilder page = new StringBuilder("<html>\n<head><title>Benchmark</title></head>\n<body>\n");
+        for (String line : lines) {
+            page.append(line).append('\n');
+        }
+        return page.append("</body>\n</html>\n").toString().getBytes();
+    }
+}
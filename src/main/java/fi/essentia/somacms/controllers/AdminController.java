@@ -1,16 +1,23 @@
 package fi.essentia.somacms.controllers;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import fi.essentia.somacms.dao.ContentCache;
 import fi.essentia.somacms.dao.ReadOnlyDataDao;
 import fi.essentia.somacms.dao.SqlDocumentVersionDao;
 import fi.essentia.somacms.json.*;
 import fi.essentia.somacms.json.Error;
 import fi.essentia.somacms.models.DocumentVersion;
+import fi.essentia.somacms.models.Thumbnail;
+import fi.essentia.somacms.tree.BatchOperation;
+import fi.essentia.somacms.tree.ContentMatch;
 import fi.essentia.somacms.tree.DocumentManager;
 import fi.essentia.somacms.tree.TreeDocument;
 import fi.essentia.somacms.tree.UnsupportedMimeTypeException;
+import fi.essentia.somacms.tree.VersionCompactor;
 import fi.essentia.somacms.util.ArchiveHelper;
+import fi.essentia.somacms.util.ThumbnailGenerator;
+import fi.essentia.somacms.util.UploadQueue;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,10 +32,12 @@ import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Takes care of all the administration tasks
@@ -44,6 +53,10 @@ public class AdminController {
     @Autowired private SqlDocumentVersionDao documentVersionDao;
     @Autowired private ReadOnlyDataDao dataDao;
     @Autowired private ArchiveHelper archiveHelper;
+    @Autowired private UploadQueue uploadQueue;
+    @Autowired private ThumbnailGenerator thumbnailGenerator;
+    @Autowired private ContentCache contentCache;
+    @Autowired private VersionCompactor versionCompactor;
     @Value("${somacms.version}") String version;
 
     @RequestMapping(method=RequestMethod.GET)
@@ -81,6 +94,36 @@ public class AdminController {
         }
     }
 
+    /**
+     * Cached by the browser for a year when requested with the hash of the current contents, as the folder view does.
+     * Images that ImageIO can't read are redirected to the image itself.
+     */
+    @RequestMapping(value="/thumbnail/{documentId}", method=RequestMethod.GET)
+    public void thumbnail(@PathVariable Long documentId, @RequestParam(value="v", required=false) String contentHash,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        TreeDocument document = documentManager.documentById(documentId);
+        if (document == null || !document.isImage()) {
+            throw new ResourceNotFoundException();
+        }
+        Thumbnail thumbnail = document.getContentHash() == null ? null : thumbnailGenerator.thumbnail(document);
+        if (thumbnail == null || thumbnail.isEmpty()) {
+            response.sendRedirect(request.getContextPath() + document.getPath());
+            return;
+        }
+
+        String entityTag = "\"" + thumbnail.getContent_hash() + "\"";
+        response.setHeader("ETag", entityTag);
+        response.setHeader("Cache-Control", thumbnail.getContent_hash().equals(contentHash) ? "private, max-age=31536000" : "private, no-cache");
+        if (entityTag.equals(request.getHeader("If-None-Match"))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(thumbnail.getMime_type());
+        response.setContentLength(thumbnail.getData().length);
+        IOUtils.write(thumbnail.getData(), response.getOutputStream());
+        response.flushBuffer();
+    }
+
     @RequestMapping(value="/api/document/{parentId}/folders", method=RequestMethod.POST)
     public @ResponseBody Result createFolder(@PathVariable Long parentId, @RequestParam("name") String name, WebRequest request) {
         TreeDocument folder;
@@ -109,21 +152,17 @@ public class AdminController {
         }
     }
 
+    /**
+     * Only spools the file, the client polls the returned job until it's done
+     */
     @RequestMapping(value="/api/document/{parentId}/files", method=RequestMethod.POST)
-    public @ResponseBody Result uploadFile(@PathVariable Long parentId, @RequestParam(value="qqfile", required=true) MultipartFile file, WebRequest request) throws IOException, ParseException {
+    public @ResponseBody Result uploadFile(@PathVariable Long parentId, @RequestParam(value="qqfile", required=true) MultipartFile file) throws IOException {
         try {
-            String contentType = file.getContentType();
-            if (contentType.equals("application/zip")) {
-                TreeDocument parent = documentManager.documentById(parentId);
-                byte[] bytes = file.getBytes();
-                archiveHelper.storeDocuments(parent, bytes);
-                storeNextMessage(request, "Archive " + file.getOriginalFilename() + " extracted");
-                return Result.success();
-            } else {
-                TreeDocument treeDocument = documentManager.storeDocument(parentId, file.getOriginalFilename(), file.getBytes());
-                storeNextMessage(request, "File " + file.getOriginalFilename() + " uploaded");
-                return new Created(treeDocument.getId());
+            TreeDocument parent = documentManager.documentById(parentId);
+            if (parent == null || !parent.isFolder()) {
+                return new Error("The folder was not found");
             }
+            return uploadQueue.submit(parent, file);
         } catch (RuntimeException e) {
             logger.error("Upload of " + file.getOriginalFilename() + " failed", e);
             return new Error(e.getMessage());
@@ -131,7 +170,7 @@ public class AdminController {
     }
 
     @RequestMapping(value="/api/document/{documentId}/replace", method=RequestMethod.POST)
-    public @ResponseBody Result replace(@PathVariable Long documentId, @RequestParam(value="qqfile", required=true) MultipartFile file, WebRequest request) throws IOException, ParseException {
+    public @ResponseBody Result replace(@PathVariable Long documentId, @RequestParam(value="qqfile", required=true) MultipartFile file) throws IOException {
         try {
             String contentType = file.getContentType();
             if (contentType.equals("application/zip")) {
@@ -142,10 +181,7 @@ public class AdminController {
                 if (!document.getName().equals(fileName)) {
                     throw new RuntimeException("Received upload of " + fileName + " that was trying to replace " + document.getName());
                 }
-
-                documentManager.storeDocument(document.getParentId(), fileName, file.getBytes());
-                storeNextMessage(request,"File " + fileName + " updated");
-                return Result.success();
+                return uploadQueue.submit(document, file);
             }
         } catch (RuntimeException e) {
             logger.error("Update of " + file.getOriginalFilename() + " failed", e);
@@ -153,6 +189,28 @@ public class AdminController {
         }
     }
 
+    @RequestMapping(value="/api/uploads/{jobId}", method=RequestMethod.GET)
+    public @ResponseBody Result uploadStatus(@PathVariable Long jobId, WebRequest request) {
+        UploadStatus status = uploadQueue.status(jobId);
+        if (status == null) {
+            return new Error("The upload was not found");
+        }
+        if (status.getState().equals(UploadStatus.DONE)) {
+            if (status.isArchive()) {
+                storeNextMessage(request, "Archive " + status.getFileName() + " extracted, " + status.getStored()
+                        + " files stored and " + status.getSkipped() + " unchanged");
+            } else {
+                storeNextMessage(request, "File " + status.getFileName() + " uploaded");
+            }
+        }
+        return status;
+    }
+
+    @RequestMapping(value="/api/uploads/", method=RequestMethod.GET)
+    public @ResponseBody UploadStatistics uploadStatistics() {
+        return uploadQueue.statistics();
+    }
+
     @RequestMapping(value="/api/document/{documentId}/save", method=RequestMethod.PUT)
     public @ResponseBody Result saveTextDocument(@PathVariable Long documentId, @RequestBody String contents) throws ParseException {
 
@@ -169,10 +227,26 @@ public class AdminController {
         return Result.success();
     }
 
+    /**
+     * Applies several operations at once, either all or none of them, e.g.
+     * [{"type":"FOLDER","path":"/news"},{"type":"STORE","path":"/news/index.html","contents":"PGh0bWw+"},
+     * {"type":"DELETE","path":"/old"}] with the contents in base64
+     */
+    @RequestMapping(value="/api/batch/", method=RequestMethod.POST)
+    public @ResponseBody Result batch(@RequestBody BatchOperation[] operations) {
+        try {
+            return new BatchResult(documentManager.applyOperations(Arrays.asList(operations)));
+        } catch (RuntimeException e) {
+            logger.error("Batch of " + operations.length + " operations failed", e);
+            return new Error(e.getMessage());
+        }
+    }
+
     @RequestMapping(value= "/api/search/", method = RequestMethod.GET)
-    public @ResponseBody Collection<SearchResult> listDocuments(@RequestParam(value = "query") String query) {
-        Collection<TreeDocument> treeDocuments = documentManager.documentsByPath(query);
-        return Collections2.transform(treeDocuments, new Function<TreeDocument, SearchResult>() {
+    public @ResponseBody List<SearchResult> listDocuments(@RequestParam(value = "query") String query,
+                                                         @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        List<TreeDocument> treeDocuments = documentManager.documentsByPath(query, limit);
+        return Lists.transform(treeDocuments, new Function<TreeDocument, SearchResult>() {
             @Override
             public SearchResult apply(TreeDocument treeDocument) {
                 return new SearchResult(treeDocument.getId(), treeDocument.getPath());
@@ -180,22 +254,61 @@ public class AdminController {
         });
     }
 
+    @RequestMapping(value= "/api/search/content/", method = RequestMethod.GET)
+    public @ResponseBody List<ContentSearchResult> searchContent(@RequestParam(value = "query") String query,
+                                                                @RequestParam(value = "limit", defaultValue = "20") int limit) {
+        List<ContentMatch> matches = documentManager.searchContent(query, limit);
+        return Lists.transform(matches, new Function<ContentMatch, ContentSearchResult>() {
+            @Override
+            public ContentSearchResult apply(ContentMatch match) {
+                TreeDocument document = match.getDocument();
+                return new ContentSearchResult(document.getId(), document.getPath(), match.getScore(), match.getSnippet());
+            }
+        });
+    }
+
+    @RequestMapping(value= "/api/replication/", method = RequestMethod.GET)
+    public @ResponseBody ReplicationStatus replicationStatus() {
+        return documentManager.getReplicationStatus();
+    }
+
+    @RequestMapping(value= "/api/retention/", method = RequestMethod.GET)
+    public @ResponseBody CompactionReport retentionReport() {
+        return versionCompactor.getLastReport();
+    }
+
+    @RequestMapping(value= "/api/cache/", method = RequestMethod.GET)
+    public @ResponseBody CacheStatistics cacheStatistics() {
+        return new CacheStatistics(contentCache.stats(), contentCache.size(), contentCache.weight());
+    }
+
     @RequestMapping(value= "/api/export/{documentId}", method = RequestMethod.GET)
     public void exportDocument(@PathVariable Long documentId, HttpServletResponse response) throws IOException {
         TreeDocument root = documentManager.documentById(documentId);
-        byte[] bytes;
         if (root.isFolder()) {
-            bytes = archiveHelper.documentAsArchive(root);
             response.setContentType("application/zip");
-            response.setContentLength(bytes.length);
             response.setHeader("Content-Disposition", "attachment; filename=\"" + root.getName() + ".zip\"");
+            archiveHelper.writeArchive(root, response.getOutputStream());
         } else {
-            bytes = dataDao.loadData(documentId, 0);
             response.setContentType(root.getMimeType());
-            response.setContentLength(bytes.length);
+            response.setContentLength((int) root.getSize());
             response.setHeader("Content-Disposition", "attachment; filename=\"" + root.getName());
+            dataDao.writeData(documentId, 0, response.getOutputStream());
         }
+        response.flushBuffer();
+    }
 
+    @RequestMapping(value= "/api/export/{documentId}/versions/{version}", method = RequestMethod.GET)
+    public void exportVersion(@PathVariable Long documentId, @PathVariable int version, HttpServletResponse response) throws IOException {
+        TreeDocument document = documentManager.documentById(documentId);
+        byte[] bytes = documentManager.loadVersion(documentId, version);
+        if (document == null || bytes == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setContentType(document.getMimeType());
+        response.setContentLength(bytes.length);
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + document.getName() + "\"");
         IOUtils.write(bytes, response.getOutputStream());
         response.flushBuffer();
     }
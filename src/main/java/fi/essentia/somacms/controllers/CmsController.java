@@ -1,22 +1,35 @@
 package fi.essentia.somacms.controllers;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import fi.essentia.somacms.dao.ContentCache;
 import fi.essentia.somacms.dao.DataDao;
 import fi.essentia.somacms.models.Document;
 import fi.essentia.somacms.tree.DocumentManager;
-import org.apache.commons.io.IOUtils;
+import fi.essentia.somacms.util.ByteRange;
+import fi.essentia.somacms.util.Rendition;
+import fi.essentia.somacms.util.RenditionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.context.request.WebRequest;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
 
 /**
  * Exposes the contents of the CMS via normal web requests
@@ -27,6 +40,10 @@ public class CmsController {
     private static final Logger logger = LoggerFactory.getLogger(CmsController.class);
     @Autowired private DocumentManager documentManager;
     @Autowired private DataDao dataDao;
+    @Autowired private ContentCache contentCache;
+    @Autowired private RenditionCache renditionCache;
+    @Value("${rendition.maxSize:4096}") int renditionMaxSize = 4096;
+    private final Random random = new Random();
 
     @RequestMapping(value="/", method=RequestMethod.GET)
     public String get() {
@@ -46,22 +63,295 @@ public class CmsController {
         if (document.isFolder()) {
             throw new UnauthorizedException();
         }
+        boolean image = document.getMimeType() != null && document.getMimeType().startsWith("image/");
+        if (image && document.getContentHash() != null && request.getQueryString() != null) {
+            if (sendRendition(document, request, response)) {
+                return;
+            }
+        }
+        // Ranges always refer to the uncompressed contents, so they're served without compression
+        boolean compressed = document.getCompressedSize() != null && request.getHeader("Range") == null && acceptsGzip(request);
+        if (document.getCompressedSize() != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (isNotModified(document, compressed, request, response, webRequest)) {
+            return;
+        }
+
+        // The file is opened before the headers are set, so that they tell the length of the contents actually sent
+        // even if the document is saved meanwhile
+        FileInputStream file = compressed ? null : openDataFile(document);
+        try {
+            response.setHeader("Accept-Ranges", "bytes");
+            long size = file == null ? document.getSize() : file.getChannel().size();
+            List<ByteRange> ranges = null;
+            if (isRangeValid(request, document)) {
+                ranges = ByteRange.parse(request.getHeader("Range"), size);
+            }
+
+            boolean head = request.getMethod().equals(RequestMethod.HEAD.name());
+            if (compressed) {
+                response.setContentType(document.getMimeType());
+                response.setHeader("Content-Encoding", "gzip");
+                response.setContentLength(document.getCompressedSize().intValue());
+                if (!head) {
+                    writeCompressedContent(document, response.getOutputStream());
+                }
+            } else if (ranges == null) {
+                response.setContentType(document.getMimeType());
+                response.setContentLength((int) size);
+                if (!head) {
+                    writeContent(document, file, 0, size, response.getOutputStream());
+                }
+            } else if (ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + size);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType(document.getMimeType());
+                response.setHeader("Content-Range", range.contentRange(size));
+                response.setContentLength((int) range.getLength());
+                if (!head) {
+                    writeContent(document, file, range.getStart(), range.getLength(), response.getOutputStream());
+                }
+            } else {
+                String boundary = Long.toHexString(random.nextLong());
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setContentType("multipart/byteranges; boundary=" + boundary);
+                if (!head) {
+                    writeRanges(document, file, size, ranges, boundary, response.getOutputStream());
+                }
+            }
+            response.flushBuffer();
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the image resized as the w, h, crop and q parameters tell, see Rendition. Returns false if no size was
+     * requested or ImageIO can't read the image, so that the original is sent instead.
+     */
+    private boolean sendRendition(Document document, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Rendition rendition;
+        try {
+            rendition = Rendition.parse(request.getParameter("w"), request.getParameter("h"), request.getParameter("crop"),
+                    request.getParameter("q"), renditionMaxSize);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return true;
+        }
+        if (rendition == null) {
+            return false;
+        }
+
+        String entityTag = "\"" + document.getContentHash() + "-" + rendition.key() + "\"";
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && matchesAny(ifNoneMatch, entityTag)) {
+            response.setHeader("ETag", entityTag);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        File file;
+        try {
+            file = renditionCache.rendition(document, rendition);
+        } catch (RenditionCache.RenditionBusyException e) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return true;
+        }
+        if (file == null) {
+            return false;
+        }
+
+        response.setHeader("ETag", entityTag);
+        response.setContentType(file.getName().endsWith(".png") ? "image/png" : "image/jpeg");
+        response.setContentLength((int) file.length());
+        if (!request.getMethod().equals(RequestMethod.HEAD.name())) {
+            try {
+                Files.copy(file, response.getOutputStream());
+            } catch (FileNotFoundException e) {
+                // Removed from the cache in between, so it's made again
+                Files.copy(renditionCache.rendition(document, rendition), response.getOutputStream());
+            }
+        }
+        response.flushBuffer();
+        return true;
+    }
+
+    /**
+     * Prefers the strong entity tag computed from the contents and falls back to the modification time, which has
+     * only a one second resolution. If-None-Match takes precedence over If-Modified-Since as HTTP requires.
+     */
+    private boolean isNotModified(Document document, boolean compressed, HttpServletRequest request, HttpServletResponse response, WebRequest webRequest) {
+        String entityTag = entityTag(document, compressed);
+        if (entityTag != null) {
+            response.setHeader("ETag", entityTag);
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                if (document.getModified() != null) {
+                    response.setDateHeader("Last-Modified", document.getModified().getTime());
+                }
+                if (matchesAny(ifNoneMatch, entityTag)) {
+                    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                    return true;
+                }
+                return false;
+            }
+        }
+
         if (webRequest == null) {
             logger.warn("WebRequest was null");
         } else if (document.getModified() == null) {
             logger.warn("document.getModified was null for " + document.getId());
         } else {
-            if (webRequest.checkNotModified(document.getModified().getTime())) {
-                return;
+            return webRequest.checkNotModified(document.getModified().getTime());
+        }
+        return false;
+    }
+
+    /**
+     * The gzipped copy is a different representation, so it needs an entity tag of its own
+     */
+    private static String entityTag(Document document, boolean compressed) {
+        if (document.getContentHash() == null) {
+            return null;
+        }
+        return "\"" + document.getContentHash() + (compressed ? "-gzip" : "") + "\"";
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                for (int i = 1; i < parameters.length; i++) {
+                    String parameter = parameters[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            return Float.parseFloat(parameter.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uses the weak comparison that If-None-Match calls for, i.e. the W/ prefix is ignored
+     */
+    private static boolean matchesAny(String header, String entityTag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(entityTag)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * The Range header must be ignored if the client's copy of the document is no longer current, as told by the
+     * optional If-Range header.
+     */
+    private boolean isRangeValid(HttpServletRequest request, Document document) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+
+        // Entity tags must match exactly, weak ones never match
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(entityTag(document, false));
+        }
+
+        if (document.getModified() == null) {
+            return false;
+        }
+        try {
+            return request.getDateHeader("If-Range") / 1000 == document.getModified().getTime() / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeRanges(Document document, FileInputStream file, long size, List<ByteRange> ranges, String boundary, ServletOutputStream out) throws IOException {
+        for (ByteRange range : ranges) {
+            out.print("\r\n--" + boundary + "\r\n");
+            out.print("Content-Type: " + document.getMimeType() + "\r\n");
+            out.print("Content-Range: " + range.contentRange(size) + "\r\n\r\n");
+            writeContent(document, file, range.getStart(), range.getLength(), out);
+        }
+        out.print("\r\n--" + boundary + "--\r\n");
+    }
 
+    private void writeCompressedContent(Document document, OutputStream out) throws IOException {
+        if (contentCache.isCacheable(document)) {
+            out.write(cachedContent(contentCache.loadCompressedData(document)));
+        } else {
+            dataDao.writeCompressedData(document.getId(), 0, out);
+        }
+    }
+
+    /**
+     * The file with the contents if they're on the local file system and not cached in memory, otherwise null. A file
+     * replaced after it was opened keeps being read as it was.
+     */
+    private FileInputStream openDataFile(Document document) {
+        File file = contentCache.isCacheable(document) ? null : dataDao.dataFile(document.getId(), 0);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            throw new ResourceNotFoundException();
+        }
+    }
+
+    /**
+     * Writes the given range of the document either from the opened file, from the cache or directly from the database
+     */
+    private void writeContent(Document document, FileInputStream file, long offset, long length, OutputStream out) throws IOException {
         // TODO Change the version number
-        byte[] bytes = dataDao.loadData(document.getId(), 0);
-        response.setContentType(document.getMimeType());
-        response.setContentLength(bytes.length);
-        IOUtils.write(bytes, response.getOutputStream());
-        response.flushBuffer();
+        if (file != null) {
+            file.getChannel().position(offset);
+            ByteStreams.copy(ByteStreams.limit(file, length), out);
+        } else if (contentCache.isCacheable(document)) {
+            byte[] bytes = cachedContent(contentCache.loadData(document));
+            if (offset < bytes.length) {
+                out.write(bytes, (int) offset, (int) Math.min(length, bytes.length - offset));
+            }
+        } else {
+            dataDao.writeData(document.getId(), 0, offset, length, out);
+        }
     }
-}
 
+    /**
+     * The contents are gone if the document was deleted or stored again after it was looked up, in which case the
+     * request fails with a 404 instead of sending other bytes than the headers promised.
+     */
+    private static byte[] cachedContent(byte[] bytes) {
+        if (bytes == null) {
+            throw new ResourceNotFoundException();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,22 @@
+package fi.essentia.somacms.dao;
+
+import fi.essentia.somacms.models.DocumentChange;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Records which documents have been created, modified or deleted, so that the in-memory tree can be brought up to
+ * date by reloading only those documents
+ */
+public interface ChangeLogDao {
+    void append(long documentId);
+    void appendAll(Collection<Long> documentIds);
+    long latestChangeId();
+    Date currentTime();
+    List<Long> changedSince(long changeId, Date time);
+    List<DocumentChange> changesSince(long changeId, Date time);
+    List<DocumentChange> changesAfter(long changeId, Collection<Long> missingChangeIds);
+    int deleteOlderThan(Date time);
+}
@@ -0,0 +1,168 @@
+package fi.essentia.somacms.dao;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
+import fi.essentia.somacms.models.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Keeps the contents of the most recently served documents in memory so that the public requests don't need to hit
+ * the database every time. The cache is bounded by the total number of bytes instead of the number of documents and
+ * documents that would take too large a share of the cache are never stored in it.
+ *
+ * The contents are cached by their hash, which never changes for the same bytes, so the entries never need to be
+ * invalidated: a new version of a document simply has another key and the old entry is evicted in time. Documents
+ * with the same contents share the entry.
+ */
+@Component
+public class ContentCache {
+    private static final Logger logger = LoggerFactory.getLogger(ContentCache.class);
+
+    /** No single document may take more than this fraction of the whole cache */
+    private static final int MAX_ENTRY_FRACTION = 16;
+
+    @Autowired ReadOnlyDataDao dataDao;
+    @Value("${cache.maxBytes:33554432}") long maxBytes;
+
+    private LoadingCache<Key, Optional<byte[]>> cache;
+
+    @PostConstruct
+    public void initialize() {
+        logger.info("Caching at most " + maxBytes + " bytes of document contents");
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, Optional<byte[]>>() {
+                    @Override
+                    public int weigh(Key key, Optional<byte[]> bytes) {
+                        return bytes.isPresent() ? bytes.get().length : 0;
+                    }
+                })
+                .recordStats()
+                .build(new CacheLoader<Key, Optional<byte[]>>() {
+                    @Override
+                    public Optional<byte[]> load(Key key) throws IOException {
+                        byte[] data = key.compressed ? dataDao.loadCompressedData(key.documentId, 0) : dataDao.loadData(key.documentId, 0);
+                        if (data == null || !key.contentHash.equals(contentHash(data, key.compressed))) {
+                            return Optional.absent();
+                        }
+                        return Optional.of(data);
+                    }
+                });
+    }
+
+    /**
+     * Tells whether the contents of the given document are small enough to be kept in the cache
+     */
+    public boolean isCacheable(Document document) {
+        return !document.isFolder() && document.getContentHash() != null && document.getSize() <= maxBytes / MAX_ENTRY_FRACTION;
+    }
+
+    /**
+     * The current contents of the document, or null if they are no longer stored as the document says, i.e. it has
+     * been deleted or stored again in the meantime.
+     */
+    public byte[] loadData(Document document) {
+        return load(new Key(document.getId(), document.getContentHash(), false));
+    }
+
+    /**
+     * The gzipped copy of the current contents, or null if there is none
+     */
+    public byte[] loadCompressedData(Document document) {
+        return load(new Key(document.getId(), document.getContentHash(), true));
+    }
+
+    /**
+     * The missing contents aren't cached, because another document with the same contents may still have them
+     */
+    private byte[] load(Key key) {
+        Optional<byte[]> data = cache.getUnchecked(key);
+        if (!data.isPresent()) {
+            cache.asMap().remove(key, data);
+        }
+        return data.orNull();
+    }
+
+    /**
+     * Checks that the loaded bytes are the ones the key was made for and not the contents of a version stored after
+     * the caller looked the document up
+     */
+    private static String contentHash(final byte[] data, boolean compressed) throws IOException {
+        if (!compressed) {
+            return Hashing.sha1().hashBytes(data).toString();
+        }
+        return ByteStreams.hash(new InputSupplier<InputStream>() {
+            @Override
+            public InputStream getInput() throws IOException {
+                return new GZIPInputStream(new ByteArrayInputStream(data));
+            }
+        }, Hashing.sha1()).toString();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Optional<byte[]> bytes : cache.asMap().values()) {
+            if (bytes.isPresent()) {
+                weight += bytes.get().length;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Only the hash and the representation identify the contents, the document is merely where they're loaded from
+     */
+    private static class Key {
+        private final long documentId;
+        private final String contentHash;
+        private final boolean compressed;
+
+        private Key(long documentId, String contentHash, boolean compressed) {
+            this.documentId = documentId;
+            this.contentHash = contentHash;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return contentHash.equals(other.contentHash) && compressed == other.compressed;
+        }
+
+        @Override
+        public int hashCode() {
+            return 2 * contentHash.hashCode() + (compressed ? 1 : 0);
+        }
+    }
+}
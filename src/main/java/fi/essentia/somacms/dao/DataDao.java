@@ -6,4 +6,26 @@ package fi.essentia.somacms.dao;
 public interface DataDao extends ReadOnlyDataDao {
     void insertData(long documentId, int documentVersion, byte[] data);
     void updateData(long documentId, int documentVersion, byte[] data);
+
+    /**
+     * Stores the gzipped copy of the data, or removes it if null
+     */
+    void updateCompressedData(long documentId, int documentVersion, byte[] data);
+
+    /**
+     * Makes another version of the document have the same data without copying the data itself
+     */
+    void copyData(long documentId, int fromVersion, int toVersion);
+
+    /**
+     * Removes the data of all the versions of the document
+     */
+    void deleteData(long documentId);
+
+    /**
+     * Removes the data of a single version
+     *
+     * @return the number of bytes freed, which is 0 if the same contents are still stored for another version
+     */
+    long deleteData(long documentId, int documentVersion);
 }
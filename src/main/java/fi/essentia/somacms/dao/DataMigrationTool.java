@@ -0,0 +1,82 @@
+package fi.essentia.somacms.dao;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * One-shot tool that moves the existing document contents from the database to the data directory used by
+ * FileDataDao. Run it while SomaCMS is stopped, with the same properties file the server uses:
+ *
+ * java -cp "WEB-INF/classes:WEB-INF/lib/*" fi.essentia.somacms.dao.DataMigrationTool somacms.properties [--delete]
+ *
+ * Without --delete the contents are only copied, so the tool can be run again and SqlDataDao can still be used.
+ */
+public class DataMigrationTool {
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length < 1) {
+            System.err.println("Usage: DataMigrationTool <somacms.properties> [--delete]");
+            System.exit(1);
+        }
+        boolean delete = Arrays.asList(args).contains("--delete");
+
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName("com.mysql.jdbc.Driver");
+        dataSource.setUrl(properties.getProperty("db.url"));
+        dataSource.setUsername(properties.getProperty("db.user"));
+        dataSource.setPassword(properties.getProperty("db.password"));
+
+        try {
+            SqlDataDao sqlDataDao = new SqlDataDao();
+            sqlDataDao.setDataSource(dataSource);
+            FileDataDao fileDataDao = new FileDataDao();
+            fileDataDao.setDirectory(new File(properties.getProperty("data.directory")));
+            fileDataDao.initialize();
+
+            JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+            List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT document_id, document_version FROM document_version WHERE content_hash IS NOT NULL ORDER BY document_id, document_version");
+            System.out.println("Moving " + rows.size() + " versions to " + properties.getProperty("data.directory"));
+
+            long bytes = 0;
+            for (Map<String, Object> row : rows) {
+                long documentId = ((Number) row.get("document_id")).longValue();
+                int documentVersion = ((Number) row.get("document_version")).intValue();
+
+                byte[] data = sqlDataDao.loadData(documentId, documentVersion);
+                fileDataDao.insertData(documentId, documentVersion, data == null ? new byte[0] : data);
+                fileDataDao.updateCompressedData(documentId, documentVersion, sqlDataDao.loadCompressedData(documentId, documentVersion));
+
+                if (fileDataDao.dataFile(documentId, documentVersion).length() != (data == null ? 0 : data.length)) {
+                    throw new IllegalStateException("Verification failed for document " + documentId + " version " + documentVersion);
+                }
+                bytes += data == null ? 0 : data.length;
+            }
+
+            if (delete) {
+                for (Long documentId : jdbcTemplate.queryForList("SELECT DISTINCT document_id FROM document_version WHERE content_hash IS NOT NULL", Long.class)) {
+                    sqlDataDao.deleteData(documentId);
+                }
+            }
+            System.out.println("Moved " + bytes + " bytes" + (delete ? " and deleted them from the database" : ""));
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import fi.essentia.somacms.models.Document;
 import fi.essentia.somacms.tree.TreeDocument;
 
 import java.text.ParseException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -18,6 +19,19 @@ public interface DocumentDao {
     void update(Document document);
     List<DatabaseDocument> findByParentId(Long parentId);
     List<DatabaseDocument> findAll();
+    List<DatabaseDocument> findByIds(Collection<Long> ids);
+    int count();
+
+    /**
+     * Locks the row of the document until the end of the transaction, so that the versions of the document are
+     * changed by one transaction at a time
+     */
+    void lockById(long id);
 
     void deleteById(Long documentId);
+
+    /**
+     * Deletes the documents in the given order, the children need to come before their parents
+     */
+    void deleteByIds(List<Long> documentIds);
 }
@@ -0,0 +1,501 @@
+package fi.essentia.somacms.dao;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * File system based implementation for storing the document contents. Only the metadata is kept in the database and
+ * the contents are stored as files under the configured directory, one directory per document and one file per
+ * version. Enabled in servlet-context.xml.
+ *
+ * Like in SqlDataDao, each distinct content is stored only once. It's kept under the content directory by its hash, and
+ * the version files are hard links to it, so the file system does the reference counting: a content file with no other
+ * links than its own is removed when the last version linking to it is deleted. On a file system without hard links
+ * every version is a copy of its own.
+ *
+ * Inside a transaction the changes to the files are applied only when it commits, see Changes.
+ */
+public class FileDataDao implements DataDao {
+    private static final Logger logger = LoggerFactory.getLogger(FileDataDao.class);
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String TEMPORARY_PREFIX = ".";
+    private static final String CONTENT_DIRECTORY = "content";
+
+    /** Spreads the document directories so that no single directory grows too large */
+    private static final int BUCKETS = 1000;
+
+    private File directory;
+    private final Object contentLock = new Object();
+
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Failed to create the data directory " + directory);
+        }
+        logger.info("Storing the document contents under " + directory.getAbsolutePath());
+    }
+
+    @Override
+    public void insertData(long documentId, int documentVersion, byte[] data) {
+        store(versionFile(documentId, documentVersion), data);
+    }
+
+    @Override
+    public void updateData(long documentId, int documentVersion, byte[] data) {
+        store(versionFile(documentId, documentVersion), data);
+    }
+
+    @Override
+    public void updateCompressedData(long documentId, int documentVersion, byte[] data) {
+        File file = compressedFile(documentId, documentVersion);
+        if (data == null) {
+            delete(file);
+        } else {
+            write(file, data);
+        }
+    }
+
+    /**
+     * Hard links the files so that the versions share the data on disk. Rewriting a version later replaces its file
+     * with a new one, so the other link keeps the old data.
+     */
+    @Override
+    public void copyData(long documentId, int fromVersion, int toVersion) {
+        File source = current(versionFile(documentId, fromVersion));
+        if (source == null) {
+            throw new RuntimeException("Version " + fromVersion + " of " + documentId + " has been deleted");
+        }
+        File target = versionFile(documentId, toVersion);
+        File temporaryFile = temporaryFile(target);
+        if (!link(source, temporaryFile)) {
+            copy(source, temporaryFile);
+        }
+        replace(target, temporaryFile);
+    }
+
+    /**
+     * Links the version to the stored content with the same hash, storing the content first if there's none yet
+     */
+    private void store(File file, byte[] data) {
+        File content = contentFile(Hashing.sha1().hashBytes(data).toString());
+        File temporaryFile = temporaryFile(file);
+        if (!link(content, temporaryFile)) {
+            File temporaryContent = temporaryFile(content);
+            writeFile(temporaryContent, data);
+            if (!temporaryContent.renameTo(content)) {
+                temporaryContent.delete();
+                throw new RuntimeException("Failed to store " + content);
+            }
+            if (!link(content, temporaryFile)) {
+                unlink(content);
+                writeFile(temporaryFile, data);
+            }
+        }
+        replace(file, temporaryFile);
+    }
+
+    /**
+     * Replaces the target with a hard link to the source. False if the source doesn't exist (e.g. another thread just
+     * released the content) or the file system has no hard links, in which case the target is left deleted.
+     */
+    private static boolean link(File source, File target) {
+        try {
+            java.nio.file.Files.deleteIfExists(target.toPath());
+            java.nio.file.Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void copy(File source, File target) {
+        try {
+            Files.copy(source, target);
+        } catch (IOException e) {
+            target.delete();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void deleteData(long documentId) {
+        File documentDirectory = documentDirectory(documentId);
+        Set<File> files = new HashSet<File>();
+        File[] existing = documentDirectory.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                if (!file.getName().startsWith(TEMPORARY_PREFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        Changes changes = changes();
+        if (changes != null) {
+            files.addAll(changes.pendingFiles(documentDirectory));
+        }
+        for (File file : files) {
+            delete(file);
+        }
+
+        if (changes == null) {
+            documentDirectory.delete();
+        } else {
+            changes.directories.add(documentDirectory);
+        }
+    }
+
+    @Override
+    public long deleteData(long documentId, int documentVersion) {
+        File file = versionFile(documentId, documentVersion);
+        File compressedFile = compressedFile(documentId, documentVersion);
+        long freed = freedSize(current(file)) + freedSize(current(compressedFile));
+        delete(file);
+        delete(compressedFile);
+        return freed;
+    }
+
+    /**
+     * The size of the file if deleting it frees its data, i.e. no other version links to it
+     */
+    private long freedSize(File file) {
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        int links = linkCount(file);
+        if (links > 2 || links == 2 && sharedContent(file) == null) {
+            return 0;
+        }
+        return file.length();
+    }
+
+    @Override
+    public long dataSize(long documentId, int documentVersion) {
+        File file = current(versionFile(documentId, documentVersion));
+        return file != null && file.exists() ? file.length() : -1;
+    }
+
+    @Override
+    public byte[] loadData(long documentId, int documentVersion) {
+        return read(current(versionFile(documentId, documentVersion)));
+    }
+
+    @Override
+    public byte[] loadCompressedData(long documentId, int documentVersion) {
+        return read(current(compressedFile(documentId, documentVersion)));
+    }
+
+    @Override
+    public void writeData(long documentId, int documentVersion, OutputStream out) throws IOException {
+        transfer(versionFile(documentId, documentVersion), 0, Long.MAX_VALUE, out);
+    }
+
+    @Override
+    public void writeData(long documentId, int documentVersion, long offset, long length, OutputStream out) throws IOException {
+        transfer(versionFile(documentId, documentVersion), offset, length, out);
+    }
+
+    @Override
+    public void writeCompressedData(long documentId, int documentVersion, OutputStream out) throws IOException {
+        transfer(compressedFile(documentId, documentVersion), 0, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Inside a transaction that has changed the version, the file with its uncommitted contents or null if the
+     * transaction has deleted it
+     */
+    @Override
+    public File dataFile(long documentId, int documentVersion) {
+        return current(versionFile(documentId, documentVersion));
+    }
+
+    private File versionFile(long documentId, int documentVersion) {
+        return new File(documentDirectory(documentId), String.valueOf(documentVersion));
+    }
+
+    private File compressedFile(long documentId, int documentVersion) {
+        return new File(documentDirectory(documentId), documentVersion + COMPRESSED_SUFFIX);
+    }
+
+    private File contentFile(String hash) {
+        return new File(new File(new File(directory, CONTENT_DIRECTORY), hash.substring(0, 2)), hash);
+    }
+
+    private File documentDirectory(long documentId) {
+        File bucket = new File(directory, String.format("%03d", documentId % BUCKETS));
+        return new File(bucket, String.valueOf(documentId));
+    }
+
+    /**
+     * The servlet output stream isn't a channel, so the bytes are copied through a small buffer instead of reading the
+     * whole file into memory
+     */
+    private void transfer(File path, long offset, long length, OutputStream out) throws IOException {
+        File file = current(path);
+        if (file == null) {
+            throw new FileNotFoundException(path + " has been deleted");
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            WritableByteChannel target = Channels.newChannel(out);
+            long end = Math.min(channel.size(), offset + Math.min(length, Long.MAX_VALUE - offset));
+            long position = offset;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private byte[] read(File file) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return Files.toByteArray(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes to a temporary file first so that concurrent readers never see a partially written file
+     */
+    private void write(File file, byte[] data) {
+        File temporaryFile = temporaryFile(file);
+        writeFile(temporaryFile, data);
+        replace(file, temporaryFile);
+    }
+
+    private static void writeFile(File temporaryFile, byte[] data) {
+        try {
+            Files.write(data, temporaryFile);
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private File temporaryFile(File file) {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new RuntimeException("Failed to create " + parent);
+        }
+        try {
+            return File.createTempFile(TEMPORARY_PREFIX + file.getName() + "-", ".tmp", parent);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Puts the new contents in place right away, or when the current transaction commits
+     */
+    private void replace(File file, File temporaryFile) {
+        Changes changes = changes();
+        if (changes == null) {
+            move(temporaryFile, file);
+        } else {
+            changes.replace(file, temporaryFile);
+        }
+    }
+
+    private void delete(File file) {
+        Changes changes = changes();
+        if (changes == null) {
+            unlink(file);
+        } else {
+            changes.replace(file, null);
+        }
+    }
+
+    private void move(File temporaryFile, File file) {
+        synchronized (contentLock) {
+            File content = sharedContent(file);
+            if (!temporaryFile.renameTo(file)) {
+                unlink(temporaryFile);
+                throw new RuntimeException("Failed to store " + file);
+            }
+            release(content);
+        }
+    }
+
+    /**
+     * Deletes the file and the stored content it was the last version of. Under the lock, so that two versions of the
+     * same content deleted at the same time can't both see the other one and leave the content behind.
+     */
+    private void unlink(File file) {
+        synchronized (contentLock) {
+            File content = sharedContent(file);
+            file.delete();
+            release(content);
+        }
+    }
+
+    /**
+     * The stored content if it's the only other link to the file, which is the only case worth hashing the file for
+     */
+    private File sharedContent(File file) {
+        if (linkCount(file) != 2) {
+            return null;
+        }
+        try {
+            File content = contentFile(Files.hash(file, Hashing.sha1()).toString());
+            return content.exists() && java.nio.file.Files.isSameFile(content.toPath(), file.toPath()) ? content : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void release(File content) {
+        if (content != null && linkCount(content) == 1) {
+            content.delete();
+        }
+    }
+
+    /**
+     * The number of hard links to the file, or -1 if it doesn't exist or the file system doesn't tell
+     */
+    private static int linkCount(File file) {
+        try {
+            return (Integer) java.nio.file.Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The file as the current transaction sees it
+     */
+    private File current(File file) {
+        Changes changes = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (changes != null && changes.files.containsKey(file)) {
+            return changes.files.get(file);
+        }
+        return file;
+    }
+
+    /**
+     * The changes of the current transaction, or null if there's no transaction and the files are changed right away
+     */
+    private Changes changes() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        Changes changes = (Changes) TransactionSynchronizationManager.getResource(this);
+        if (changes == null) {
+            changes = new Changes();
+            TransactionSynchronizationManager.bindResource(this, changes);
+            TransactionSynchronizationManager.registerSynchronization(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * The files changed by a transaction. The new contents are written to temporary files as the transaction goes
+     * and moved in place only after it commits, so a rolled back transaction leaves the files as they were, just like
+     * the rows in the database. The transaction itself sees its own changes.
+     */
+    private class Changes extends TransactionSynchronizationAdapter {
+        /** The temporary file with the new contents of each changed file, or null if the file is to be deleted */
+        private final Map<File, File> files = new HashMap<File, File>();
+        private final Set<File> directories = new HashSet<File>();
+
+        private void replace(File file, File temporaryFile) {
+            File previous = files.put(file, temporaryFile);
+            if (previous != null) {
+                unlink(previous);
+            }
+        }
+
+        /**
+         * Before the other synchronizations, which may read the new contents after the commit
+         */
+        @Override
+        public int getOrder() {
+            return Ordered.HIGHEST_PRECEDENCE;
+        }
+
+        private Set<File> pendingFiles(File directory) {
+            Set<File> pending = new HashSet<File>();
+            for (File file : files.keySet()) {
+                if (file.getParentFile().equals(directory)) {
+                    pending.add(file);
+                }
+            }
+            return pending;
+        }
+
+        /**
+         * The database has committed at this point, so a file that can't be moved is only logged
+         */
+        @Override
+        public void afterCommit() {
+            Iterator<Map.Entry<File, File>> iterator = files.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<File, File> entry = iterator.next();
+                try {
+                    if (entry.getValue() == null) {
+                        unlink(entry.getKey());
+                    } else {
+                        move(entry.getValue(), entry.getKey());
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Failed to apply a committed change to " + entry.getKey(), e);
+                }
+                iterator.remove();
+            }
+            for (File directory : directories) {
+                directory.delete();
+            }
+        }
+
+        /**
+         * Removes the temporary files that were never moved in place
+         */
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(FileDataDao.this);
+            for (File temporaryFile : files.values()) {
+                if (temporaryFile != null) {
+                    unlink(temporaryFile);
+                }
+            }
+            files.clear();
+        }
+    }
+}
@@ -1,9 +1,37 @@
 package fi.essentia.somacms.dao;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Interface that exposes only read operations to the DataDao so that we don't even accidentally use it to bypass
  * DocumentManager.
  */
 public interface ReadOnlyDataDao {
     byte[] loadData(long documentId, int documentVersion);
+
+    /**
+     * Writes the data to the given stream without loading it all into memory first
+     */
+    void writeData(long documentId, int documentVersion, OutputStream out) throws IOException;
+
+    /**
+     * Writes only the given range of the data to the stream. The range may extend beyond the end of the data.
+     */
+    void writeData(long documentId, int documentVersion, long offset, long length, OutputStream out) throws IOException;
+
+    /**
+     * Returns the number of bytes stored for the version, or -1 if there is nothing stored
+     */
+    long dataSize(long documentId, int documentVersion);
+
+    byte[] loadCompressedData(long documentId, int documentVersion);
+    void writeCompressedData(long documentId, int documentVersion, OutputStream out) throws IOException;
+
+    /**
+     * Returns the file that holds the data if the contents are stored on the local file system, otherwise null. Lets
+     * the controller open the file once and send exactly what it holds.
+     */
+    File dataFile(long documentId, int documentVersion);
 }
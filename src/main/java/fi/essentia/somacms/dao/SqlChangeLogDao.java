@@ -0,0 +1,108 @@
+package fi.essentia.somacms.dao;
+
+import fi.essentia.somacms.models.DocumentChange;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SQL based implementation for the document change log
+ */
+@Repository
+public class SqlChangeLogDao implements ChangeLogDao {
+    private static final int MAX_LISTED_IDS = 100;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public void append(long documentId) {
+        jdbcTemplate.update("INSERT INTO document_change (document_id) VALUES(?)", documentId);
+    }
+
+    /**
+     * Sent to the database as a single batch
+     */
+    @Override
+    public void appendAll(Collection<Long> documentIds) {
+        List<Object[]> rows = new ArrayList<Object[]>(documentIds.size());
+        for (Long documentId : documentIds) {
+            rows.add(new Object[] {documentId});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO document_change (document_id) VALUES(?)", rows);
+    }
+
+    @Override
+    public long latestChangeId() {
+        return jdbcTemplate.queryForLong("SELECT COALESCE(MAX(id), 0) FROM document_change");
+    }
+
+    @Override
+    public Date currentTime() {
+        return jdbcTemplate.queryForObject("SELECT CURRENT_TIMESTAMP", Date.class);
+    }
+
+    /**
+     * The ids are assigned when the changes are inserted but become visible when they are committed, so a change
+     * committed late may have a smaller id than the latest one seen. Such changes are picked up by the time instead.
+     */
+    @Override
+    public List<Long> changedSince(long changeId, Date time) {
+        return jdbcTemplate.queryForList("SELECT DISTINCT document_id FROM document_change WHERE id > ? OR changed >= ?", Long.class, changeId, time);
+    }
+
+    @Override
+    public List<DocumentChange> changesSince(long changeId, Date time) {
+        return jdbcTemplate.query("SELECT * FROM document_change WHERE id > ? OR changed >= ? ORDER BY id", BeanPropertyRowMapper.newInstance(DocumentChange.class), changeId, time);
+    }
+
+    /**
+     * The changes after the given one, and the given older changes that hadn't been committed yet when last polled.
+     * Many missing changes are asked for as the range from the oldest of them instead of one bind parameter each, and
+     * the changes in the range that were already seen are left out here.
+     */
+    @Override
+    public List<DocumentChange> changesAfter(long changeId, Collection<Long> missingChangeIds) {
+        if (missingChangeIds.isEmpty()) {
+            return jdbcTemplate.query("SELECT * FROM document_change WHERE id > ? ORDER BY id", BeanPropertyRowMapper.newInstance(DocumentChange.class), changeId);
+        }
+
+        if (missingChangeIds.size() > MAX_LISTED_IDS) {
+            Set<Long> missing = new HashSet<Long>(missingChangeIds);
+            List<DocumentChange> changes = new ArrayList<DocumentChange>();
+            for (DocumentChange change : jdbcTemplate.query("SELECT * FROM document_change WHERE id >= ? ORDER BY id",
+                    BeanPropertyRowMapper.newInstance(DocumentChange.class), Collections.min(missing))) {
+                if (change.getId() > changeId || missing.contains(change.getId())) {
+                    changes.add(change);
+                }
+            }
+            return changes;
+        }
+
+        List<Object> arguments = new ArrayList<Object>(missingChangeIds.size() + 1);
+        arguments.add(changeId);
+        arguments.addAll(missingChangeIds);
+        String placeholders = StringUtils.repeat("?", ",", missingChangeIds.size());
+        return jdbcTemplate.query("SELECT * FROM document_change WHERE id > ? OR id IN (" + placeholders + ") ORDER BY id", BeanPropertyRowMapper.newInstance(DocumentChange.class), arguments.toArray());
+    }
+
+    @Override
+    public int deleteOlderThan(Date time) {
+        return jdbcTemplate.update("DELETE FROM document_change WHERE changed < ?", time);
+    }
+}
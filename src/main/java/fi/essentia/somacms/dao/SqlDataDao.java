@@ -1,18 +1,35 @@
 package fi.essentia.somacms.dao;
 
+import com.google.common.hash.Hashing;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.stereotype.Component;
+import org.springframework.jdbc.core.RowMapper;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Blob;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
 
 /**
- * SQL based implementation for storing the document contents
+ * SQL based implementation for storing the document contents. Enabled in servlet-context.xml.
+ *
+ * The contents are addressed by their hash. Each distinct content is stored only once in the content table, and the
+ * document versions only point to it, so identical files and unchanged versions don't take any extra space. The
+ * content rows are reference counted and removed when the last version pointing to them is gone.
  */
-@Component
 public class SqlDataDao implements DataDao {
+    /**
+     * The MySQL driver always reads a whole row into memory, so large documents are streamed in chunks of this size
+     * instead of as a single blob.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
     private JdbcTemplate jdbcTemplate;
 
     @Autowired
@@ -22,21 +39,193 @@ public class SqlDataDao implements DataDao {
 
     @Override
     public void insertData(long documentId, int documentVersion, byte[] data) {
-        jdbcTemplate.update("INSERT INTO document_data (document_id, document_version, data) VALUES(?, ?)", documentId, documentVersion, data);
+        String hash = acquire(data);
+        setContentHash(documentId, documentVersion, hash);
     }
 
     @Override
     public void updateData(long documentId, int documentVersion, byte[] data) {
-        jdbcTemplate.update("UPDATE document_data SET data=? WHERE document_id=? AND document_version=?", data, documentId, documentVersion);
+        String previousHash = contentHash(documentId, documentVersion);
+        String hash = Hashing.sha1().hashBytes(data).toString();
+        if (hash.equals(previousHash)) {
+            return;
+        }
+
+        acquire(data);
+        setContentHash(documentId, documentVersion, hash);
+        release(previousHash, 1);
+    }
+
+    /**
+     * The compressed copy is shared by all the documents with the same contents, so it's never removed here
+     */
+    @Override
+    public void updateCompressedData(long documentId, int documentVersion, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        jdbcTemplate.update("UPDATE content SET gzip_data=? WHERE hash=(SELECT content_hash FROM document_version WHERE document_id=? AND document_version=?)",
+                data, documentId, documentVersion);
+    }
+
+    @Override
+    public void copyData(long documentId, int fromVersion, int toVersion) {
+        String hash = contentHash(documentId, fromVersion);
+        if (hash == null) {
+            return;
+        }
+        jdbcTemplate.update("UPDATE content SET ref_count=ref_count+1 WHERE hash=?", hash);
+        setContentHash(documentId, toVersion, hash);
+    }
+
+    @Override
+    public void deleteData(long documentId) {
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(
+                "SELECT content_hash, COUNT(*) AS refs FROM document_version WHERE document_id=? AND content_hash IS NOT NULL GROUP BY content_hash", documentId);
+        jdbcTemplate.update("UPDATE document_version SET content_hash=NULL WHERE document_id=?", documentId);
+        for (Map<String, Object> row : rows) {
+            release((String) row.get("content_hash"), ((Number) row.get("refs")).intValue());
+        }
+    }
+
+    @Override
+    public long deleteData(long documentId, int documentVersion) {
+        String hash = contentHash(documentId, documentVersion);
+        setContentHash(documentId, documentVersion, null);
+        return release(hash, 1);
+    }
+
+    /**
+     * Adds a reference to the content row with the same hash, and only sends the data to the database if there is no
+     * such row yet.
+     *
+     * @return the hash of the data
+     */
+    private String acquire(byte[] data) {
+        String hash = Hashing.sha1().hashBytes(data).toString();
+        int updated = jdbcTemplate.update("UPDATE content SET ref_count=ref_count+1 WHERE hash=?", hash);
+        if (updated == 0) {
+            jdbcTemplate.update("INSERT INTO content (hash, data, ref_count) VALUES(?, ?, 1) ON DUPLICATE KEY UPDATE ref_count=ref_count+1", hash, data);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the size of the content row if this was its last reference and it was removed, otherwise 0
+     */
+    private long release(String hash, int references) {
+        if (hash == null) {
+            return 0;
+        }
+        jdbcTemplate.update("UPDATE content SET ref_count=ref_count-? WHERE hash=?", references, hash);
+        List<Long> sizes = jdbcTemplate.queryForList("SELECT LENGTH(data) + COALESCE(LENGTH(gzip_data), 0) FROM content WHERE hash=? AND ref_count<=0",
+                Long.class, hash);
+        if (sizes.isEmpty()) {
+            return 0;
+        }
+        jdbcTemplate.update("DELETE FROM content WHERE hash=? AND ref_count<=0", hash);
+        return sizes.get(0) == null ? 0 : sizes.get(0);
+    }
+
+    private String contentHash(long documentId, int documentVersion) {
+        List<String> hashes = jdbcTemplate.queryForList("SELECT content_hash FROM document_version WHERE document_id=? AND document_version=?",
+                String.class, documentId, documentVersion);
+        return hashes.isEmpty() ? null : hashes.get(0);
+    }
+
+    private void setContentHash(long documentId, int documentVersion, String hash) {
+        jdbcTemplate.update("UPDATE document_version SET content_hash=? WHERE document_id=? AND document_version=?", hash, documentId, documentVersion);
     }
 
     @Override
     public byte[] loadData(long documentId, int documentVersion) {
-        Blob blob = jdbcTemplate.queryForObject("SELECT data FROM document_data WHERE document_id=? and document_version=?", Blob.class, documentId, documentVersion);
+        return loadBlob("data", documentId, documentVersion);
+    }
+
+    /**
+     * The contents may be shared with other versions, in which case removing the version doesn't free these bytes
+     */
+    @Override
+    public long dataSize(long documentId, int documentVersion) {
+        List<Long> sizes = jdbcTemplate.queryForList("SELECT LENGTH(c.data) FROM content c JOIN document_version v ON c.hash=v.content_hash " +
+                "WHERE v.document_id=? AND v.document_version=?", Long.class, documentId, documentVersion);
+        return sizes.isEmpty() || sizes.get(0) == null ? -1 : sizes.get(0);
+    }
+
+    @Override
+    public byte[] loadCompressedData(long documentId, int documentVersion) {
+        return loadBlob("gzip_data", documentId, documentVersion);
+    }
+
+    private byte[] loadBlob(String column, long documentId, int documentVersion) {
+        List<Blob> blobs = jdbcTemplate.queryForList("SELECT c." + column + " FROM content c JOIN document_version v ON c.hash=v.content_hash " +
+                "WHERE v.document_id=? AND v.document_version=?", Blob.class, documentId, documentVersion);
+        Blob blob = blobs.isEmpty() ? null : blobs.get(0);
+        if (blob == null) {
+            return null;
+        }
         try {
             return blob.getBytes(1, (int)blob.length());
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
+
+    @Override
+    public void writeData(long documentId, int documentVersion, OutputStream out) throws IOException {
+        writeData(documentId, documentVersion, 0, Long.MAX_VALUE, out);
+    }
+
+    @Override
+    public void writeData(long documentId, int documentVersion, long offset, long length, OutputStream out) throws IOException {
+        writeBlob("data", documentId, documentVersion, offset, length, out);
+    }
+
+    @Override
+    public void writeCompressedData(long documentId, int documentVersion, OutputStream out) throws IOException {
+        writeBlob("gzip_data", documentId, documentVersion, 0, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Not run in a transaction, as a slow client would hold the connection for the whole response. Instead each chunk
+     * is read with a statement of its own and written to the stream only after the connection has been returned. The
+     * chunks are read by the content hash, so they all come from the same contents even if the document is updated
+     * while it's being written out.
+     */
+    private void writeBlob(String column, long documentId, int documentVersion, long offset, long length, OutputStream out) throws IOException {
+        String hash = contentHash(documentId, documentVersion);
+        if (hash == null) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        long remaining = length;
+        while (remaining > 0) {
+            int chunkSize = (int) Math.min(CHUNK_SIZE, remaining);
+            byte[] chunk = readChunk(column, hash, offset, chunkSize);
+            out.write(chunk);
+            offset += chunk.length;
+            remaining -= chunk.length;
+            if (chunk.length < chunkSize) {
+                break;
+            }
+        }
+    }
+
+    private byte[] readChunk(String column, String hash, long offset, int length) {
+        List<byte[]> chunks = jdbcTemplate.query("SELECT SUBSTRING(" + column + ", ?, ?) FROM content WHERE hash=?", new RowMapper<byte[]>() {
+            @Override
+            public byte[] mapRow(ResultSet resultSet, int rowNumber) throws SQLException {
+                byte[] chunk = resultSet.getBytes(1);
+                return chunk == null ? new byte[0] : chunk;
+            }
+        }, offset + 1, length, hash);
+        if (chunks.isEmpty()) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return chunks.get(0);
+    }
+
+    @Override
+    public File dataFile(long documentId, int documentVersion) {
+        return null;
+    }
 }
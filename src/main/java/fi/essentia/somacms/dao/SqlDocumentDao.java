@@ -3,7 +3,7 @@ package fi.essentia.somacms.dao;
 import fi.essentia.somacms.models.DatabaseDocument;
 import fi.essentia.somacms.models.Document;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.apache.commons.lang.StringUtils;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
@@ -15,6 +15,9 @@ import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -25,6 +28,27 @@ import java.util.Map;
  */
 @Repository
 public class SqlDocumentDao implements DocumentDao {
+    /** Maps the columns directly, which loads the whole tree several times faster than the reflective mappers */
+    private static final RowMapper<DatabaseDocument> ROW_MAPPER = new RowMapper<DatabaseDocument>() {
+        @Override
+        public DatabaseDocument mapRow(ResultSet rs, int rowNum) throws SQLException {
+            DatabaseDocument document = new DatabaseDocument();
+            document.setId(rs.getLong("id"));
+            document.setName(rs.getString("name"));
+            document.setSize(rs.getLong("size"));
+            long compressedSize = rs.getLong("compressed_size");
+            document.setCompressedSize(rs.wasNull() ? null : compressedSize);
+            long parentId = rs.getLong("parent_id");
+            document.setParentId(rs.wasNull() ? null : parentId);
+            document.setMimeType(rs.getString("mime_type"));
+            document.setContentHash(rs.getString("content_hash"));
+            document.setFolder(rs.getBoolean("folder"));
+            document.setCreated(rs.getTimestamp("created"));
+            document.setModified(rs.getTimestamp("modified"));
+            return document;
+        }
+    };
+
     private JdbcTemplate jdbcTemplate;
     private SimpleJdbcInsert insertDocument;
 
@@ -37,15 +61,13 @@ public class SqlDocumentDao implements DocumentDao {
     @Override
     public DatabaseDocument findById(long id) {
         String query = "SELECT * FROM document WHERE id=?";
-        DatabaseDocument document = (DatabaseDocument) jdbcTemplate.queryForObject(query, new Object[]{id}, new BeanPropertyRowMapper(DatabaseDocument.class));
-        return document;
+        return jdbcTemplate.queryForObject(query, new Object[]{id}, ROW_MAPPER);
     }
 
     @Override
     public DatabaseDocument findByParentIdAndName(long parentId, String documentName) {
         String query = "SELECT * FROM document WHERE parent_id=? and name=?";
-        DatabaseDocument document = (DatabaseDocument) jdbcTemplate.queryForObject(query, new Object[]{parentId, documentName}, new BeanPropertyRowMapper(DatabaseDocument.class));
-        return document;
+        return jdbcTemplate.queryForObject(query, new Object[]{parentId, documentName}, ROW_MAPPER);
     }
 
     @Override
@@ -57,26 +79,57 @@ public class SqlDocumentDao implements DocumentDao {
 
     @Override
     public void update(Document document) {
-        jdbcTemplate.update("UPDATE document SET name=?, size=?, parent_id=?, mime_type=?, folder=?, created=?, modified=? WHERE id=?",
-                document.getName(), document.getSize(), document.getParentId(), document.getMimeType(), document.isFolder(), document.getCreated(), document.getModified(),
+        jdbcTemplate.update("UPDATE document SET name=?, size=?, compressed_size=?, parent_id=?, mime_type=?, content_hash=?, folder=?, created=?, modified=? WHERE id=?",
+                document.getName(), document.getSize(), document.getCompressedSize(), document.getParentId(), document.getMimeType(), document.getContentHash(), document.isFolder(), document.getCreated(), document.getModified(),
                 document.getId());
     }
 
     @Override
     public List<DatabaseDocument> findByParentId(Long parentId) {
         if (parentId == null) {
-            return jdbcTemplate.query("SELECT * FROM document WHERE parent_id IS NULL", BeanPropertyRowMapper.newInstance(DatabaseDocument.class));
+            return jdbcTemplate.query("SELECT * FROM document WHERE parent_id IS NULL", ROW_MAPPER);
         } else {
-            return jdbcTemplate.query("SELECT * FROM document WHERE parent_id=?", BeanPropertyRowMapper.newInstance(DatabaseDocument.class), parentId);
+            return jdbcTemplate.query("SELECT * FROM document WHERE parent_id=?", ROW_MAPPER, parentId);
         }
     }
 
     @Override
     public List<DatabaseDocument> findAll() {
-        return jdbcTemplate.query("SELECT * FROM document", BeanPropertyRowMapper.newInstance(DatabaseDocument.class));
+        return jdbcTemplate.query("SELECT * FROM document", ROW_MAPPER);
+    }
+
+    /**
+     * Ids not found in the database are left out of the result
+     */
+    @Override
+    public List<DatabaseDocument> findByIds(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String placeholders = StringUtils.repeat("?", ",", ids.size());
+        return jdbcTemplate.query("SELECT * FROM document WHERE id IN (" + placeholders + ")", ROW_MAPPER, ids.toArray());
+    }
+
+    @Override
+    public int count() {
+        return jdbcTemplate.queryForInt("SELECT COUNT(*) FROM document");
+    }
+
+    @Override
+    public void lockById(long id) {
+        jdbcTemplate.queryForList("SELECT id FROM document WHERE id=? FOR UPDATE", Long.class, id);
     }
 
     @Override public void deleteById(Long documentId) {
         jdbcTemplate.update("DELETE FROM document WHERE id=?", documentId);
     }
+
+    @Override
+    public void deleteByIds(List<Long> documentIds) {
+        List<Object[]> rows = new ArrayList<Object[]>(documentIds.size());
+        for (Long documentId : documentIds) {
+            rows.add(new Object[] {documentId});
+        }
+        jdbcTemplate.batchUpdate("DELETE FROM document WHERE id=?", rows);
+    }
 }
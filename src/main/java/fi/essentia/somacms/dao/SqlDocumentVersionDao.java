@@ -6,15 +6,20 @@ import fi.essentia.somacms.models.DocumentVersion;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.BeanPropertySqlParameterSource;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Repository;
 
 import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * SQL based implementation for storing the metadata for the version
@@ -49,12 +54,55 @@ public class SqlDocumentVersionDao implements VersionDao {
 
     @Override
     public int maxVersion(long documentId) {
-        String query = "SELECT document_version FROM document_version WHERE document_id=? ORDER BY document_version DESC limit 1";
+        String query = "SELECT document_version FROM document_version WHERE document_id=? ORDER BY document_version DESC limit 1 FOR UPDATE";
         List<Integer> rows = jdbcTemplate.queryForList(query, Integer.class, documentId);
 
         return rows.get(0);
     }
 
+    @Override
+    public void setDeltaBase(long documentId, int version, Integer deltaBase) {
+        jdbcTemplate.update("UPDATE document_version SET delta_base=? WHERE document_id=? and document_version=?", deltaBase, documentId, version);
+    }
+
+    /**
+     * All the versions of the document, the newest first
+     */
+    @Override
+    public List<DocumentVersion> findByDocumentId(long documentId) {
+        return jdbcTemplate.query("SELECT * FROM document_version WHERE document_id=? ORDER BY document_version DESC",
+                BeanPropertyRowMapper.newInstance(DocumentVersion.class), documentId);
+    }
+
+    /**
+     * The documents that have older versions besides the current one, in the order of their ids
+     */
+    @Override
+    public List<Long> documentsWithVersions(long afterDocumentId, int limit) {
+        return jdbcTemplate.queryForList("SELECT DISTINCT document_id FROM document_version WHERE document_id > ? AND document_version > 0 ORDER BY document_id LIMIT ?",
+                Long.class, afterDocumentId, limit);
+    }
+
+    @Override
+    public void deleteVersion(long documentId, int version) {
+        jdbcTemplate.update("DELETE FROM document_version WHERE document_id=? and document_version=?", documentId, version);
+    }
+
+    /**
+     * The versions stored as deltas, mapped to the version they are a delta against
+     */
+    @Override
+    public Map<Integer, Integer> deltaBases(long documentId) {
+        final Map<Integer, Integer> deltaBases = new HashMap<Integer, Integer>();
+        jdbcTemplate.query("SELECT document_version, delta_base FROM document_version WHERE document_id=? AND delta_base IS NOT NULL", new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                deltaBases.put(rs.getInt("document_version"), rs.getInt("delta_base"));
+            }
+        }, documentId);
+        return deltaBases;
+    }
+
     /*
     @Override
     public Long idOfOldestBackup(Long parentId, String documentName) throws ParseException {
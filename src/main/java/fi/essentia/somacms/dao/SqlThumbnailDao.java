@@ -0,0 +1,40 @@
+package fi.essentia.somacms.dao;
+
+import fi.essentia.somacms.models.Thumbnail;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+/**
+ * SQL based implementation for the thumbnails
+ */
+@Repository
+public class SqlThumbnailDao implements ThumbnailDao {
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public Thumbnail findThumbnail(long documentId, String contentHash) {
+        List<Thumbnail> thumbnails = jdbcTemplate.query("SELECT * FROM document_thumbnail WHERE document_id=? AND content_hash=?",
+                new BeanPropertyRowMapper<Thumbnail>(Thumbnail.class), documentId, contentHash);
+        return thumbnails.isEmpty() ? null : thumbnails.get(0);
+    }
+
+    /**
+     * Two requests may make the same thumbnail at the same time, the later one just overwrites it
+     */
+    @Override
+    public void storeThumbnail(Thumbnail thumbnail) {
+        jdbcTemplate.update("INSERT INTO document_thumbnail (document_id, content_hash, mime_type, data) VALUES(?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE content_hash=VALUES(content_hash), mime_type=VALUES(mime_type), data=VALUES(data)",
+                thumbnail.getDocument_id(), thumbnail.getContent_hash(), thumbnail.getMime_type(), thumbnail.getData());
+    }
+}
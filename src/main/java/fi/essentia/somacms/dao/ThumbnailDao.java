@@ -0,0 +1,18 @@
+package fi.essentia.somacms.dao;
+
+import fi.essentia.somacms.models.Thumbnail;
+
+/**
+ * Stores the thumbnail of the current version of each image, they're removed along with the document
+ */
+public interface ThumbnailDao {
+    /**
+     * Null if there's no thumbnail made from the contents with the given hash
+     */
+    Thumbnail findThumbnail(long documentId, String contentHash);
+
+    /**
+     * Replaces the thumbnail of an earlier version
+     */
+    void storeThumbnail(Thumbnail thumbnail);
+}
@@ -6,6 +6,7 @@ import fi.essentia.somacms.models.DocumentVersion;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Stores and loads the metadata for the documents
@@ -14,5 +15,14 @@ public interface VersionDao {
     DocumentVersion findSortedByDocumentId(long id);
     void insertVersion(long documentId, int version, Date creation_time);
     void update(long documentId, int version, Date creation_time);
+
+    /**
+     * A locking read, so that it also sees the versions committed since the transaction started
+     */
     int maxVersion(long documentId);
+    void setDeltaBase(long documentId, int version, Integer deltaBase);
+    Map<Integer, Integer> deltaBases(long documentId);
+    List<DocumentVersion> findByDocumentId(long documentId);
+    List<Long> documentsWithVersions(long afterDocumentId, int limit);
+    void deleteVersion(long documentId, int version);
 }
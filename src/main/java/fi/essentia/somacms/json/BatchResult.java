@@ -0,0 +1,19 @@
+package fi.essentia.somacms.json;
+
+import java.util.List;
+
+/**
+ * Tells the client that all the operations of a batch were committed, with the result of each in the same order
+ */
+public class BatchResult extends Result {
+    private List<OperationResult> results;
+
+    public BatchResult(List<OperationResult> results) {
+        super(true);
+        this.results = results;
+    }
+
+    public List<OperationResult> getResults() {
+        return results;
+    }
+}
@@ -0,0 +1,42 @@
+package fi.essentia.somacms.json;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Tells the client how well the content cache is doing
+ */
+public class CacheStatistics {
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long documents;
+    private long bytes;
+
+    public CacheStatistics(CacheStats stats, long documents, long bytes) {
+        this.hitCount = stats.hitCount();
+        this.missCount = stats.missCount();
+        this.evictionCount = stats.evictionCount();
+        this.documents = documents;
+        this.bytes = bytes;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
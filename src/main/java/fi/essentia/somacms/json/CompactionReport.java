@@ -0,0 +1,46 @@
+package fi.essentia.somacms.json;
+
+import java.util.Date;
+
+/**
+ * What the latest run of the version compactor removed
+ */
+public class CompactionReport {
+    private Date finished;
+    private long durationMillis;
+    private int documentsExamined;
+    private int versionsRemoved;
+    private long bytesReclaimed;
+
+    public CompactionReport(Date finished, long durationMillis, int documentsExamined, int versionsRemoved, long bytesReclaimed) {
+        this.finished = finished;
+        this.durationMillis = durationMillis;
+        this.documentsExamined = documentsExamined;
+        this.versionsRemoved = versionsRemoved;
+        this.bytesReclaimed = bytesReclaimed;
+    }
+
+    public Date getFinished() {
+        return finished;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public int getDocumentsExamined() {
+        return documentsExamined;
+    }
+
+    public int getVersionsRemoved() {
+        return versionsRemoved;
+    }
+
+    /**
+     * Stored bytes of the removed versions less what the remaining versions grew when they had to be stored against
+     * another version. Contents shared with other versions are counted even though they are still stored.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+}
@@ -0,0 +1,34 @@
+package fi.essentia.somacms.json;
+
+/**
+ * One text document whose contents match the search query
+ */
+public class ContentSearchResult {
+    private long id;
+    private String path;
+    private double score;
+    private String snippet;
+
+    public ContentSearchResult(long id, String path, double score, String snippet) {
+        this.id = id;
+        this.path = path;
+        this.score = score;
+        this.snippet = snippet;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    public String getSnippet() {
+        return snippet;
+    }
+}
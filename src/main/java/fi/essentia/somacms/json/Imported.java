@@ -0,0 +1,23 @@
+package fi.essentia.somacms.json;
+
+/**
+ * Tells the client how many files of an archive were stored and how many already had the same contents
+ */
+public class Imported extends Result {
+    int stored;
+    int skipped;
+
+    public Imported(int stored, int skipped) {
+        super(true);
+        this.stored = stored;
+        this.skipped = skipped;
+    }
+
+    public int getStored() {
+        return stored;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,34 @@
+package fi.essentia.somacms.json;
+
+/**
+ * What a single operation of a batch did
+ */
+public class OperationResult {
+    public static final String CREATED = "created";
+    public static final String EXISTS = "exists";
+    public static final String STORED = "stored";
+    public static final String UNCHANGED = "unchanged";
+    public static final String DELETED = "deleted";
+
+    private String path;
+    private String outcome;
+    private long documentId;
+
+    public OperationResult(String path, String outcome, long documentId) {
+        this.path = path;
+        this.outcome = outcome;
+        this.documentId = documentId;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public long getDocumentId() {
+        return documentId;
+    }
+}
@@ -0,0 +1,34 @@
+package fi.essentia.somacms.json;
+
+/**
+ * How far behind the change log the in-memory document tree of this node is
+ */
+public class ReplicationStatus {
+    private long lagMillis;
+    private long lastChangeId;
+    private int pendingChanges;
+
+    public ReplicationStatus(long lagMillis, long lastChangeId, int pendingChanges) {
+        this.lagMillis = lagMillis;
+        this.lastChangeId = lastChangeId;
+        this.pendingChanges = pendingChanges;
+    }
+
+    /**
+     * Time since the changes were last applied successfully, or -1 if they haven't been applied yet
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public long getLastChangeId() {
+        return lastChangeId;
+    }
+
+    /**
+     * Changes with a smaller id than the last one that hadn't been committed yet when last polled
+     */
+    public int getPendingChanges() {
+        return pendingChanges;
+    }
+}
@@ -0,0 +1,28 @@
+package fi.essentia.somacms.json;
+
+/**
+ * How long a stage of the upload processing has taken
+ */
+public class StageLatency {
+    private long count;
+    private long averageMillis;
+    private long maxMillis;
+
+    public StageLatency(long count, long totalMillis, long maxMillis) {
+        this.count = count;
+        this.averageMillis = count == 0 ? 0 : totalMillis / count;
+        this.maxMillis = maxMillis;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getAverageMillis() {
+        return averageMillis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+}
@@ -0,0 +1,42 @@
+package fi.essentia.somacms.json;
+
+import java.util.Map;
+
+/**
+ * Tells the client how many uploads are waiting or being processed, and how long each stage has taken since the start
+ */
+public class UploadStatistics {
+    private int queued;
+    private int processing;
+    private long completed;
+    private long failed;
+    private Map<String, StageLatency> stages;
+
+    public UploadStatistics(int queued, int processing, long completed, long failed, Map<String, StageLatency> stages) {
+        this.queued = queued;
+        this.processing = processing;
+        this.completed = completed;
+        this.failed = failed;
+        this.stages = stages;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getProcessing() {
+        return processing;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public Map<String, StageLatency> getStages() {
+        return stages;
+    }
+}
@@ -0,0 +1,65 @@
+package fi.essentia.somacms.json;
+
+/**
+ * Tells the client how far the processing of an upload has got. The document id is set once a single file has been
+ * stored, and the stored and skipped counts once an archive has been imported.
+ */
+public class UploadStatus extends Result {
+    public static final String QUEUED = "queued";
+    public static final String PROCESSING = "processing";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private long jobId;
+    private String fileName;
+    private boolean archive;
+    private String state;
+    private Long documentId;
+    private int stored;
+    private int skipped;
+    private String error;
+
+    public UploadStatus(long jobId, String fileName, boolean archive, String state, Long documentId, int stored, int skipped, String error) {
+        super(true);
+        this.jobId = jobId;
+        this.fileName = fileName;
+        this.archive = archive;
+        this.state = state;
+        this.documentId = documentId;
+        this.stored = stored;
+        this.skipped = skipped;
+        this.error = error;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isArchive() {
+        return archive;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public Long getDocumentId() {
+        return documentId;
+    }
+
+    public int getStored() {
+        return stored;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -14,8 +14,10 @@ public class DatabaseDocument implements Document {
     @Getter @Setter private long id;
     @Getter @Setter private String name;
     @Getter @Setter private long size;
+    @Getter @Setter private Long compressedSize;
     @Getter @Setter private Long parentId;
     @Getter @Setter private String mimeType;
+    @Getter @Setter private String contentHash;
     @Getter @Setter private boolean folder;
     @Getter @Setter private Date created;
     @Getter @Setter private Date modified;
@@ -46,6 +48,20 @@ public class DatabaseDocument implements Document {
                 mimeType.equals("application/javascript");
     }
 
+    /**
+     * Tells whether it makes sense to store a gzipped copy of the contents next to the original
+     */
+    public boolean isCompressible() {
+        if (isFolder()) {
+            return false;
+        }
+
+        String mimeType = getMimeType();
+        return isText() ||
+                mimeType.equals("image/svg+xml") ||
+                mimeType.equals("application/json");
+    }
+
     public boolean isViewable() {
         return isFolder() || isImage() || isText();
     }
@@ -10,8 +10,10 @@ public interface Document {
     long getId();
     String getName();
     long getSize();
+    Long getCompressedSize();
     Long getParentId();
     String getMimeType();
+    String getContentHash();
     boolean isFolder();
     Date getCreated();
     Date getModified();
@@ -0,0 +1,23 @@
+package fi.essentia.somacms.models;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Date;
+
+/**
+ * One entry in the change log, telling that the document was created, modified or deleted
+ */
+public class DocumentChange {
+    @Getter @Setter private long id;
+    @Getter @Setter private long documentId;
+    @Getter @Setter private Date changed;
+
+    public DocumentChange() {
+    }
+
+    public DocumentChange(long id, long documentId) {
+        this.id = id;
+        this.documentId = documentId;
+    }
+}
@@ -12,4 +12,5 @@ public class DocumentVersion implements Version {
     @Getter @Setter private long document_id;
     @Getter @Setter private int document_version;
     @Getter @Setter private Date creation_time;
+    @Getter @Setter private Integer delta_base;
 }
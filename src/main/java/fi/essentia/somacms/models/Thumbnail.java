@@ -0,0 +1,19 @@
+package fi.essentia.somacms.models;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A scaled down copy of an image document, made from the contents with the given hash. Images that can't be read
+ * have a thumbnail without the data, so that reading them is not attempted again.
+ */
+public class Thumbnail {
+    @Getter @Setter private long document_id;
+    @Getter @Setter private String content_hash;
+    @Getter @Setter private String mime_type;
+    @Getter @Setter private byte[] data;
+
+    public boolean isEmpty() {
+        return data == null;
+    }
+}
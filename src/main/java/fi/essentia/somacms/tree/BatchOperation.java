@@ -0,0 +1,44 @@
+package fi.essentia.somacms.tree;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * One step of a batch run by DocumentManager.applyOperations. The path is the full path of the folder or document,
+ * like in documentFromPath.
+ */
+public class BatchOperation {
+    public enum Type {
+        /** Creates the folder unless it already exists, the parent folder needs to exist */
+        FOLDER,
+        /** Stores the contents as a new document or as the next version of an existing one */
+        STORE,
+        /** Deletes the document or the folder with everything in it */
+        DELETE
+    }
+
+    @Getter @Setter private Type type;
+    @Getter @Setter private String path;
+    @Getter @Setter private byte[] contents;
+
+    public BatchOperation() {
+    }
+
+    public BatchOperation(Type type, String path, byte[] contents) {
+        this.type = type;
+        this.path = path;
+        this.contents = contents;
+    }
+
+    public static BatchOperation folder(String path) {
+        return new BatchOperation(Type.FOLDER, path, null);
+    }
+
+    public static BatchOperation store(String path, byte[] contents) {
+        return new BatchOperation(Type.STORE, path, contents);
+    }
+
+    public static BatchOperation delete(String path) {
+        return new BatchOperation(Type.DELETE, path, null);
+    }
+}
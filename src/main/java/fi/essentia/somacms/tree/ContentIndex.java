@@ -0,0 +1,162 @@
+package fi.essentia.somacms.tree;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index over the words in the text documents. Each word maps to the documents containing it along with the
+ * number of occurrences, so a query only looks at the postings of its own words. Updated by the DocumentManagerImpl
+ * whenever text documents are stored or deleted; the queries don't take any locks.
+ */
+class ContentIndex {
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private final Map<String, Map<Long, Integer>> postings = new ConcurrentHashMap<String, Map<Long, Integer>>();
+    private final Map<Long, Set<String>> documentTerms = new ConcurrentHashMap<Long, Set<String>>();
+
+    /**
+     * Replaces whatever was indexed for the document before
+     */
+    public synchronized void index(long documentId, String text) {
+        remove(documentId);
+
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        for (String term : terms(text)) {
+            Integer frequency = frequencies.get(term);
+            frequencies.put(term, frequency == null ? 1 : frequency + 1);
+        }
+
+        for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            Map<Long, Integer> documents = postings.get(entry.getKey());
+            if (documents == null) {
+                documents = new ConcurrentHashMap<Long, Integer>();
+                postings.put(entry.getKey(), documents);
+            }
+            documents.put(documentId, entry.getValue());
+        }
+        documentTerms.put(documentId, new HashSet<String>(frequencies.keySet()));
+    }
+
+    /**
+     * Used when building the index in the background, so that contents read before a concurrent update never replace
+     * the newer contents indexed by the update
+     */
+    public synchronized boolean indexIfAbsent(long documentId, String text) {
+        if (documentTerms.containsKey(documentId)) {
+            return false;
+        }
+        index(documentId, text);
+        return true;
+    }
+
+    public synchronized void remove(long documentId) {
+        Set<String> terms = documentTerms.remove(documentId);
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms) {
+            Map<Long, Integer> documents = postings.get(term);
+            if (documents != null) {
+                documents.remove(documentId);
+                if (documents.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns at most limit documents containing every word of the query, best first. Each word scores its number of
+     * occurrences weighted by how rare the word is across the indexed documents.
+     */
+    public List<Hit> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<String>(terms(query));
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Map<Long, Integer>> queryPostings = new ArrayList<Map<Long, Integer>>();
+        Map<Long, Integer> shortest = null;
+        for (String term : queryTerms) {
+            Map<Long, Integer> documents = postings.get(term);
+            if (documents == null) {
+                return Collections.emptyList();
+            }
+            queryPostings.add(documents);
+            if (shortest == null || documents.size() < shortest.size()) {
+                shortest = documents;
+            }
+        }
+
+        double documentCount = Math.max(documentTerms.size(), 1);
+        List<Hit> hits = new ArrayList<Hit>();
+        for (Long documentId : shortest.keySet()) {
+            double score = 0;
+            for (Map<Long, Integer> documents : queryPostings) {
+                Integer frequency = documents.get(documentId);
+                if (frequency == null) {
+                    score = -1;
+                    break;
+                }
+                score += frequency * Math.log(1 + documentCount / documents.size());
+            }
+            if (score >= 0) {
+                hits.add(new Hit(documentId, score));
+            }
+        }
+
+        Collections.sort(hits);
+        return hits.size() > limit ? new ArrayList<Hit>(hits.subList(0, limit)) : hits;
+    }
+
+    public int size() {
+        return documentTerms.size();
+    }
+
+    /**
+     * Splits the text into lower-cased runs of letters and digits, so "jquery.min.js" is found by searching for
+     * "jquery min js" as well
+     */
+    static List<String> terms(String text) {
+        List<String> terms = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean wordCharacter = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (wordCharacter && start < 0) {
+                start = i;
+            } else if (!wordCharacter && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    public static class Hit implements Comparable<Hit> {
+        private final long documentId;
+        private final double score;
+
+        private Hit(long documentId, double score) {
+            this.documentId = documentId;
+            this.score = score;
+        }
+
+        public long getDocumentId() {
+            return documentId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int compared = Double.compare(other.score, score);
+            return compared != 0 ? compared : (documentId < other.documentId ? -1 : (documentId == other.documentId ? 0 : 1));
+        }
+    }
+}
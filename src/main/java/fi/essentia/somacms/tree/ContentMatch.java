@@ -0,0 +1,18 @@
+package fi.essentia.somacms.tree;
+
+import lombok.Getter;
+
+/**
+ * A text document whose contents match a search query, with a short excerpt around the first match
+ */
+public class ContentMatch {
+    @Getter private final TreeDocument document;
+    @Getter private final double score;
+    @Getter private final String snippet;
+
+    public ContentMatch(TreeDocument document, double score, String snippet) {
+        this.document = document;
+        this.score = score;
+        this.snippet = snippet;
+    }
+}
@@ -1,5 +1,7 @@
 package fi.essentia.somacms.tree;
 
+import fi.essentia.somacms.json.OperationResult;
+import fi.essentia.somacms.json.ReplicationStatus;
 import fi.essentia.somacms.models.Document;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -17,6 +19,34 @@ public interface DocumentManager {
     TreeDocument createFolder(Long parentId, String name);
     TreeDocument createTextFile(Long parentId, String name);
     TreeDocument storeDocument(Long parentId, String fileName, byte[] bytes) throws ParseException;
+
+    /**
+     * Same as above with the SHA-1 content hash of the bytes already computed, e.g. while streaming them from a file
+     */
+    TreeDocument storeDocument(Long parentId, String fileName, byte[] bytes, String contentHash) throws ParseException;
+
     TreeDocument deleteDocument(Long documentId);
-    Collection<TreeDocument> documentsByPath(String path);
+
+    /**
+     * Creates folders, stores documents and deletes them in a single transaction, the results in the same order
+     */
+    List<OperationResult> applyOperations(List<BatchOperation> operations);
+
+    /**
+     * Locks the documents for writing until the current transaction completes, in a fixed order so that transactions
+     * writing several documents can't wait for each other. Storing a locked document in the same transaction doesn't
+     * wait.
+     */
+    void lockDocuments(List<TreeDocument> documents);
+
+    byte[] loadVersion(long documentId, int version);
+    List<TreeDocument> documentsByPath(String path, int limit);
+    List<ContentMatch> searchContent(String query, int limit);
+    void replicateChanges();
+
+    /**
+     * Discards the changes made to the given documents in memory by a transaction that was rolled back
+     */
+    void reloadDocuments(Collection<Long> documentIds);
+    ReplicationStatus getReplicationStatus();
 }
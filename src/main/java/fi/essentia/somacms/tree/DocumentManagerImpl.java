@@ -1,26 +1,52 @@
 package fi.essentia.somacms.tree;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
 import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.hash.Hashing;
 import fi.essentia.somacms.controllers.UnauthorizedException;
+import fi.essentia.somacms.dao.ChangeLogDao;
+import fi.essentia.somacms.dao.ContentCache;
 import fi.essentia.somacms.dao.DataDao;
 import fi.essentia.somacms.dao.DocumentDao;
 import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.json.OperationResult;
+import fi.essentia.somacms.json.ReplicationStatus;
 import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.models.Document;
+import fi.essentia.somacms.models.DocumentChange;
+import fi.essentia.somacms.util.BinaryDelta;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tika.Tika;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.text.Format;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Concrete implementation of the DocumentManager. Keeps the document metadata in memory for faster access.
@@ -29,26 +55,74 @@ import java.util.concurrent.ConcurrentHashMap;
 @Transactional
 public class DocumentManagerImpl implements DocumentManager {
     private static final Logger logger = LoggerFactory.getLogger(DocumentManagerImpl.class);
+    private static final int MIN_COMPRESSIBLE_SIZE = 256;
+    private static final int MAX_INDEXED_SIZE = 1024 * 1024;
+    private static final int SNIPPET_CONTEXT = 60;
+    private static final int RELOAD_BATCH_SIZE = 1000;
+
+    /** Longer than any transaction, so that changes committed after the snapshot was taken are never missed */
+    private static final long CHANGE_LOG_GRACE_MILLIS = 5 * 60 * 1000;
+    private static final long CHANGE_LOG_PRUNE_INTERVAL_MILLIS = 60 * 60 * 1000;
+    private static final int MAX_MISSING_CHANGES = 10000;
+    private static final int DOCUMENT_LOCK_STRIPES = 1024;
+    private static final int DOCUMENT_LOCK_TIMEOUT_SECONDS = 30;
     private Tika tika = new Tika();
     private final Map<Long, TreeDocument> idToDocument = new ConcurrentHashMap<Long, TreeDocument>();
+
+    /** Full paths without the leading and trailing slashes, so the root is an empty string */
+    private final Map<String, TreeDocument> pathToDocument = new ConcurrentHashMap<String, TreeDocument>();
+    private final PathIndex pathIndex = new PathIndex();
+    private final ContentIndex contentIndex = new ContentIndex();
+
+    /** Serializes the writes of each document, the writes of different documents rarely share a lock */
+    Striped<Lock> documentLocks = Striped.lock(DOCUMENT_LOCK_STRIPES);
     private TreeDocument root;
 
+    /** Odd while the changes of a batch or a replication are being applied to the tree, only changed under this */
+    private volatile long publishSequence;
+    private long loadedChangeId;
+    private Date loadedChangeTime;
+
+    // Replication state, only touched by the scheduled replicateChanges
+    private boolean replicating;
+    private long replicatedChangeId;
+    private final Map<Long, Long> missingChangeIds = new HashMap<Long, Long>();
+    private boolean untrackedChanges;
+    private long lastPruned = System.currentTimeMillis();
+    private volatile long lastReplicated;
+    private long lastSnapshot = System.currentTimeMillis();
+    private final AtomicBoolean writingSnapshot = new AtomicBoolean();
+
     @Autowired DocumentDao documentDao;
     @Autowired DataDao dataDao;
     @Autowired VersionDao versionDao;
+    @Autowired ContentCache contentCache;
+    @Autowired ChangeLogDao changeLogDao;
+    @Autowired PlatformTransactionManager transactionManager;
+    @Value("${snapshot.file:}") String snapshotFile;
+    @Value("${snapshot.maxAgeHours:168}") int snapshotMaxAgeHours;
+    @Value("${snapshot.intervalMinutes:60}") int snapshotIntervalMinutes = 60;
+    @Value("${versions.fullInterval:16}") int versionFullInterval = 16;
 
     @PostConstruct
     public void initialize() {
         loadDocuments();
         initializeRoot();
         linkDocuments();
+        indexPaths();
+        indexContentsInBackground();
+        writeSnapshotInBackground(loadedChangeId, loadedChangeTime);
     }
 
     private void initializeRoot() {
         root = idToDocument.get(TreeDocument.ROOT_ID);
     }
 
+    /**
+     * Collects the children of each folder first, so that each folder publishes its children only once
+     */
     private void linkDocuments() {
+        Map<TreeDocument, List<TreeDocument>> parentToChildren = new HashMap<TreeDocument, List<TreeDocument>>();
         for (TreeDocument document : idToDocument.values()) {
             if (document == root) {
                 continue;
@@ -56,53 +130,465 @@ public class DocumentManagerImpl implements DocumentManager {
 
             TreeDocument parent = parentFromId(document.getParentId());
             document.setParent(parent);
-            parent.addChild(document);
+            List<TreeDocument> children = parentToChildren.get(parent);
+            if (children == null) {
+                children = new ArrayList<TreeDocument>();
+                parentToChildren.put(parent, children);
+            }
+            children.add(document);
+        }
+
+        for (Map.Entry<TreeDocument, List<TreeDocument>> entry : parentToChildren.entrySet()) {
+            entry.getKey().addChildren(entry.getValue());
         }
     }
 
+    private void indexPaths() {
+        for (TreeDocument document : idToDocument.values()) {
+            pathToDocument.put(pathKey(document.getPath()), document);
+            if (document != root) {
+                pathIndex.add(document);
+            }
+        }
+    }
+
+    /**
+     * Reading every text document takes a while with a large tree, so the server starts answering right away and the
+     * content search finds more documents as the indexing proceeds
+     */
+    private void indexContentsInBackground() {
+        final List<TreeDocument> documents = new ArrayList<TreeDocument>(idToDocument.values());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                int indexed = 0;
+                for (TreeDocument document : documents) {
+                    try {
+                        if (!isIndexable(document) || !idToDocument.containsKey(document.getId())) {
+                            continue;
+                        }
+                        byte[] bytes = dataDao.loadData(document.getId(), 0);
+                        if (bytes != null && contentIndex.indexIfAbsent(document.getId(), new String(bytes, Charsets.UTF_8))) {
+                            indexed++;
+                        }
+                    } catch (RuntimeException e) {
+                        logger.warn("Failed to index the contents of document " + document.getId(), e);
+                    }
+                }
+                logger.info("Indexed the contents of " + indexed + " documents in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }, "content-indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean isIndexable(TreeDocument document) {
+        return !document.isFolder() && document.getMimeType() != null && document.isText() && document.getSize() <= MAX_INDEXED_SIZE;
+    }
+
+    /**
+     * The latest change is read before the documents, so that any change made while loading is reloaded again when
+     * starting from the snapshot written afterwards
+     */
     private void loadDocuments() {
-        List<DatabaseDocument> databaseDocuments = documentDao.findAll();
-        for (DatabaseDocument databaseDocument : databaseDocuments) {
-            TreeDocument treeDocument = new TreeDocument(databaseDocument);
-            /*Integer numberOfBackups = documentDao.numberOfBackups(databaseDocument.getParentId(), databaseDocument.getName());
-            for (int i = 1; i <= numberOfBackups; i++) {
-                String backupName = databaseDocument.getName() + "_" + i;
-                DatabaseDocument backupDocument = documentDao.findByParentIdAndName(databaseDocument.getParentId(), backupName);
-                byte[] currentBytes = dataDao.loadData(backupDocument.getId());
-                String modifiedDate = backupDocument.getModified().toString();
-                modifiedDate = modifiedDate.replace(".0", "");
-                treeDocument.addBackupDateToData(modifiedDate, new String(currentBytes));
-            }*/
-            idToDocument.put(treeDocument.getId(), treeDocument);
+        long changeId = changeLogDao.latestChangeId();
+        Date changeTime = changeLogDao.currentTime();
+        if (!loadSnapshot(changeTime)) {
+            idToDocument.clear();
+            for (DatabaseDocument databaseDocument : documentDao.findAll()) {
+                idToDocument.put(databaseDocument.getId(), new TreeDocument(databaseDocument));
+            }
+            logger.info("Loaded " + idToDocument.size() + " documents from the database");
+        }
+        loadedChangeId = changeId;
+        loadedChangeTime = changeTime;
+    }
+
+    /**
+     * Loads the documents from the snapshot file and reloads the ones changed after it from the database. Returns
+     * false if there is no snapshot or it can't be used, in which case everything needs to be loaded from the database.
+     */
+    private boolean loadSnapshot(Date changeTime) {
+        if (StringUtils.isEmpty(snapshotFile) || !new File(snapshotFile).isFile()) {
+            return false;
+        }
+
+        TreeSnapshot snapshot;
+        try {
+            snapshot = TreeSnapshot.read(new File(snapshotFile));
+        } catch (IOException e) {
+            logger.warn("Ignoring the unreadable snapshot " + snapshotFile, e);
+            return false;
+        }
+        long age = changeTime.getTime() - snapshot.getChangeTime().getTime();
+        if (age > snapshotMaxAgeHours * 60L * 60 * 1000) {
+            logger.info("Ignoring the snapshot " + snapshotFile + " taken " + age / 1000 / 60 + " minutes ago");
+            return false;
+        }
+
+        for (DatabaseDocument databaseDocument : snapshot.getDocuments()) {
+            idToDocument.put(databaseDocument.getId(), new TreeDocument(databaseDocument));
+        }
+        Date since = new Date(snapshot.getChangeTime().getTime() - CHANGE_LOG_GRACE_MILLIS);
+        List<Long> changedIds = changeLogDao.changedSince(snapshot.getChangeId(), since);
+        for (List<Long> ids : Lists.partition(changedIds, RELOAD_BATCH_SIZE)) {
+            Set<Long> deletedIds = new HashSet<Long>(ids);
+            for (DatabaseDocument databaseDocument : documentDao.findByIds(ids)) {
+                idToDocument.put(databaseDocument.getId(), new TreeDocument(databaseDocument));
+                deletedIds.remove(databaseDocument.getId());
+            }
+            for (Long deletedId : deletedIds) {
+                idToDocument.remove(deletedId);
+            }
+        }
+
+        if (!isConsistent()) {
+            logger.warn("The snapshot " + snapshotFile + " doesn't match the database");
+            return false;
         }
+        logger.info("Loaded " + snapshot.getDocuments().size() + " documents from the snapshot and reloaded " + changedIds.size() + " changed documents");
+        return true;
     }
 
+    /**
+     * Catches changes made without going through the change log, which would otherwise leave the tree broken
+     */
+    private boolean isConsistent() {
+        if (!idToDocument.containsKey(TreeDocument.ROOT_ID) || idToDocument.size() != documentDao.count()) {
+            return false;
+        }
+        for (TreeDocument document : idToDocument.values()) {
+            Long parentId = document.getParentId();
+            if (document.getId() != TreeDocument.ROOT_ID && (parentId == null || !idToDocument.containsKey(parentId))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The snapshot holds the tree as it is now, which must include every change up to changeId and every change
+     * logged after changeTime minus the grace period. Skipped if the previous snapshot is still being written.
+     */
+    private void writeSnapshotInBackground(final long changeId, final Date changeTime) {
+        if (StringUtils.isEmpty(snapshotFile) || !writingSnapshot.compareAndSet(false, true)) {
+            return;
+        }
+
+        final List<TreeDocument> documents = new ArrayList<TreeDocument>(idToDocument.values());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TreeSnapshot.write(new File(snapshotFile), changeId, changeTime, documents);
+                    logger.info("Wrote " + documents.size() + " documents to the snapshot " + snapshotFile);
+                } catch (IOException e) {
+                    logger.warn("Failed to write the snapshot " + snapshotFile, e);
+                } finally {
+                    writingSnapshot.set(false);
+                }
+            }
+        }, "tree-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A single lookup without locks, unless changes are being applied to the tree. The path doesn't need to be
+     * normalized by the caller, but the common case of a path without the leading and trailing slashes is looked up
+     * without allocating anything.
+     */
     @Override
     public TreeDocument documentFromPath(String path) {
-        // Shortcut for root
-        if (path.equals("/")) {
-            return root;
+        String key = pathKey(path);
+        while (true) {
+            long sequence = awaitPublished();
+            TreeDocument document = pathToDocument.get(key);
+            if (sequence == publishSequence) {
+                return document;
+            }
         }
+    }
 
-        // Strip the first slash because otherwise split generates an empty string as the first element
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+    /**
+     * Waits for the changes being applied to the tree, so that a lookup never sees only some of the changes of a
+     * batch or a replication. The changes are applied holding the monitor, so getting it means they're done. Returns
+     * the sequence to check the lookup against.
+     */
+    private long awaitPublished() {
+        long sequence = publishSequence;
+        if ((sequence & 1) != 0 && !Thread.holdsLock(this)) {
+            synchronized (this) {
+                sequence = publishSequence;
+            }
         }
+        return sequence;
+    }
 
-        String[] split = path.split("/");
-        TreeDocument document = root;
-        for (String name : split) {
-            document = document.childByName(name);
-            if (document == null) {
-                return null;
+    private static String pathKey(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.endsWith("/") && path.length() > start ? path.length() - 1 : path.length();
+        if (start == 0 && end == path.length()) {
+            return path;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * Applies the changes made by the other nodes, and again the changes made by this node, which are simply reloaded
+     * with the same values. Each poll asks for the changes after the latest one seen and for the older ones that
+     * weren't committed yet when last polled. Those are given up after a while, as rolled back changes leave gaps in
+     * the ids for good.
+     */
+    @Override
+    public synchronized void replicateChanges() {
+        long start = System.currentTimeMillis();
+
+        // Read before the changes, like when loading the documents
+        boolean snapshotDue = !StringUtils.isEmpty(snapshotFile) && start - lastSnapshot > snapshotIntervalMinutes * 60L * 1000;
+        Date snapshotTime = snapshotDue ? changeLogDao.currentTime() : null;
+
+        List<DocumentChange> changes;
+        if (!replicating) {
+            // The first poll also picks the changes that were still being committed when the documents were loaded
+            changes = changeLogDao.changesSince(loadedChangeId, new Date(loadedChangeTime.getTime() - CHANGE_LOG_GRACE_MILLIS));
+            replicatedChangeId = changes.isEmpty() ? loadedChangeId : Math.min(loadedChangeId, changes.get(0).getId() - 1);
+            trackChanges(changes, start);
+            if (replicatedChangeId < loadedChangeId) {
+                trackMissingChanges(replicatedChangeId, loadedChangeId + 1, start);
+                replicatedChangeId = loadedChangeId;
+            }
+            replicating = true;
+        } else {
+            // Given up before asking for them, so that they aren't asked for once more
+            Iterator<Long> firstMissed = missingChangeIds.values().iterator();
+            while (firstMissed.hasNext()) {
+                if (start - firstMissed.next() > CHANGE_LOG_GRACE_MILLIS) {
+                    firstMissed.remove();
+                }
             }
+            changes = changeLogDao.changesAfter(replicatedChangeId, new ArrayList<Long>(missingChangeIds.keySet()));
+            trackChanges(changes, start);
+        }
+
+        if (untrackedChanges) {
+            // Some of the changes in the gap may be committed later and would never be applied otherwise
+            reloadAllDocuments();
+            untrackedChanges = false;
+        } else {
+            Set<Long> documentIds = new LinkedHashSet<Long>();
+            for (DocumentChange change : changes) {
+                documentIds.add(change.getDocumentId());
+            }
+            reloadDocuments(documentIds);
+        }
+
+        if (start - lastPruned > CHANGE_LOG_PRUNE_INTERVAL_MILLIS) {
+            // Kept as long as the snapshots taken before them are used
+            long retention = snapshotMaxAgeHours * 60L * 60 * 1000 + CHANGE_LOG_PRUNE_INTERVAL_MILLIS;
+            int deleted = changeLogDao.deleteOlderThan(new Date(changeLogDao.currentTime().getTime() - retention));
+            logger.debug("Pruned " + deleted + " entries from the change log");
+            lastPruned = start;
+        }
+
+        // Rewritten while running, so that a restart can always start from a recent snapshot
+        if (snapshotDue) {
+            writeSnapshotInBackground(replicatedChangeId, snapshotTime);
+            lastSnapshot = start;
+        }
+        lastReplicated = start;
+    }
+
+    private void trackChanges(List<DocumentChange> changes, long now) {
+        for (DocumentChange change : changes) {
+            if (change.getId() > replicatedChangeId) {
+                trackMissingChanges(replicatedChangeId, change.getId(), now);
+                replicatedChangeId = change.getId();
+            } else {
+                missingChangeIds.remove(change.getId());
+            }
+        }
+    }
+
+    /**
+     * Remembers the ids between the two changes as missing. A gap too large to track leads to reloading the whole
+     * tree instead.
+     */
+    private void trackMissingChanges(long fromChangeId, long toChangeId, long now) {
+        if (toChangeId - fromChangeId > MAX_MISSING_CHANGES) {
+            logger.warn("Reloading all the documents instead of tracking " + (toChangeId - fromChangeId - 1) + " missing changes before " + toChangeId);
+            untrackedChanges = true;
+            return;
+        }
+        for (long id = fromChangeId + 1; id < toChangeId; id++) {
+            missingChangeIds.put(id, now);
+        }
+    }
+
+    @Override
+    public ReplicationStatus getReplicationStatus() {
+        long lastReplicated = this.lastReplicated;
+        synchronized (this) {
+            return new ReplicationStatus(lastReplicated == 0 ? -1 : System.currentTimeMillis() - lastReplicated, replicatedChangeId, missingChangeIds.size());
+        }
+    }
+
+    /**
+     * Brings the given documents up to date with the database, removing the ones no longer there. Documents whose
+     * new parent isn't in the tree yet are retried once the others have been applied.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public synchronized void reloadDocuments(Collection<Long> documentIds) {
+        List<DatabaseDocument> loaded = new ArrayList<DatabaseDocument>();
+        for (List<Long> ids : Lists.partition(new ArrayList<Long>(documentIds), RELOAD_BATCH_SIZE)) {
+            loaded.addAll(documentDao.findByIds(ids));
+        }
+        applyDocuments(documentIds, loaded);
+    }
+
+    /**
+     * Brings the whole tree up to date with the database, when the changes made in the meantime aren't known
+     */
+    private void reloadAllDocuments() {
+        List<DatabaseDocument> loaded = documentDao.findAll();
+        Set<Long> documentIds = new LinkedHashSet<Long>(idToDocument.keySet());
+        for (DatabaseDocument databaseDocument : loaded) {
+            documentIds.add(databaseDocument.getId());
+        }
+        applyDocuments(documentIds, loaded);
+        logger.info("Reloaded all the " + loaded.size() + " documents");
+    }
+
+    /**
+     * Applies the documents as a whole, the lookups wait until every one of them is in place
+     */
+    private void applyDocuments(Collection<Long> documentIds, List<DatabaseDocument> loaded) {
+        publishSequence++;
+        try {
+            applyEachDocument(documentIds, loaded);
+        } finally {
+            publishSequence++;
+        }
+    }
+
+    private void applyEachDocument(Collection<Long> documentIds, List<DatabaseDocument> loaded) {
+        Set<Long> deletedIds = new LinkedHashSet<Long>(documentIds);
+        for (DatabaseDocument databaseDocument : loaded) {
+            deletedIds.remove(databaseDocument.getId());
+        }
+        for (Long deletedId : deletedIds) {
+            TreeDocument document = idToDocument.get(deletedId);
+            if (document != null && !document.isRoot()) {
+                removeSubtree(document);
+            }
+        }
+
+        List<DatabaseDocument> pending = loaded;
+        while (!pending.isEmpty()) {
+            List<DatabaseDocument> retry = new ArrayList<DatabaseDocument>();
+            for (DatabaseDocument databaseDocument : pending) {
+                if (!applyDocument(databaseDocument)) {
+                    retry.add(databaseDocument);
+                }
+            }
+            if (retry.size() == pending.size()) {
+                logger.warn("Parents not found for " + retry.size() + " replicated documents");
+                break;
+            }
+            pending = retry;
+        }
+    }
+
+    /**
+     * Returns false if the document needs to be added under a parent which isn't in the tree yet
+     */
+    private boolean applyDocument(DatabaseDocument databaseDocument) {
+        TreeDocument document = idToDocument.get(databaseDocument.getId());
+        TreeDocument parent = databaseDocument.getParentId() == null ? null : idToDocument.get(databaseDocument.getParentId());
+        if (document == null) {
+            if (parent == null) {
+                return false;
+            }
+            reindexContent(addToTree(databaseDocument, parent.getId()));
+            return true;
+        }
+
+        boolean moved = !document.isRoot() && (!document.getName().equals(databaseDocument.getName())
+                || !Objects.equal(document.getParentId(), databaseDocument.getParentId())
+                || document.isFolder() != databaseDocument.isFolder());
+        if (moved) {
+            if (parent == null) {
+                return false;
+            }
+            unindexSubtree(document);
+            document.getParent().removeChild(document);
+            document.setName(databaseDocument.getName());
+            document.setFolder(databaseDocument.isFolder());
+            document.setParentId(databaseDocument.getParentId());
+            document.setParent(parent);
+            parent.addChild(document);
+            indexSubtree(document);
+        }
+
+        boolean contentChanged = !Objects.equal(document.getContentHash(), databaseDocument.getContentHash());
+        document.setSize(databaseDocument.getSize());
+        document.setCompressedSize(databaseDocument.getCompressedSize());
+        document.setMimeType(databaseDocument.getMimeType());
+        document.setContentHash(databaseDocument.getContentHash());
+        document.setCreated(databaseDocument.getCreated());
+        document.setModified(databaseDocument.getModified());
+        if (contentChanged) {
+            reindexContent(document);
+        }
+        return true;
+    }
+
+    private void removeSubtree(TreeDocument document) {
+        for (TreeDocument child : document.getChildren()) {
+            removeSubtree(child);
+        }
+        removeFromTree(document);
+    }
+
+    private void unindexSubtree(TreeDocument document) {
+        for (TreeDocument child : document.getChildren()) {
+            unindexSubtree(child);
+        }
+        pathToDocument.remove(pathKey(document.getPath()));
+        pathIndex.remove(document);
+    }
+
+    private void indexSubtree(TreeDocument document) {
+        pathToDocument.put(pathKey(document.getPath()), document);
+        pathIndex.add(document);
+        for (TreeDocument child : document.getChildren()) {
+            indexSubtree(child);
+        }
+    }
+
+    /**
+     * The contents were changed by another node, so they're already committed
+     */
+    private void reindexContent(TreeDocument document) {
+        byte[] bytes = isIndexable(document) ? dataDao.loadData(document.getId(), 0) : null;
+        if (bytes == null) {
+            contentIndex.remove(document.getId());
+        } else {
+            contentIndex.index(document.getId(), new String(bytes, Charsets.UTF_8));
         }
-        return document;
     }
 
     @Override
     public TreeDocument documentById(Long id) {
-        return idToDocument.get(id);
+        while (true) {
+            long sequence = awaitPublished();
+            TreeDocument document = idToDocument.get(id);
+            if (sequence == publishSequence) {
+                return document;
+            }
+        }
     }
 
     @Override
@@ -121,10 +607,12 @@ public class DocumentManagerImpl implements DocumentManager {
             if (!databaseDocument.isText()) {
                 throw new UnsupportedMimeTypeException();
             }
+            databaseDocument.setContentHash(contentHash(new byte[0]));
         }
         databaseDocument.setParentId(parent.getId());
 
         documentDao.save(databaseDocument);
+        changeLogDao.append(databaseDocument.getId());
         return addToTree(databaseDocument, parentId);
     }
 
@@ -148,45 +636,52 @@ public class DocumentManagerImpl implements DocumentManager {
         return idToDocument.get(parentId);
     }
 
+    /**
+     * Storing the same contents again would only add an identical version, so it's skipped without touching the
+     * database. The same bytes with the same name also detect as the same mime type.
+     */
     @Override
     public TreeDocument storeDocument(Long parentId, String fileName, byte[] bytes) throws ParseException {
-        String mimeType = tika.detect(bytes, fileName);
+        return storeDocument(parentId, fileName, bytes, contentHash(bytes));
+    }
+
+    @Override
+    public TreeDocument storeDocument(Long parentId, String fileName, byte[] bytes, String contentHash) throws ParseException {
         TreeDocument parent = folder(parentId);
         TreeDocument document = parent.childByName(fileName);
+        if (document != null && contentHash.equals(document.getContentHash())) {
+            logger.debug("Unchanged contents, parentId = " + parentId + ", fileName = " + fileName);
+            return document;
+        }
+        String mimeType = tika.detect(bytes, fileName);
         Date currentDate = new Date();
 
         if (document == null) {
 
             logger.debug("New document, parentId = " + parentId + ", fileName = " + fileName);
-            DatabaseDocument databaseDocument = new DatabaseDocument();
-            databaseDocument.setName(fileName);
-            databaseDocument.setParentId(parent.getId());
-            databaseDocument.setModified(currentDate);
-            databaseDocument.setSize(bytes.length);
-            databaseDocument.setMimeType(mimeType);
-            long documentId = documentDao.save(databaseDocument);
-            versionDao.insertVersion(documentId, 0, currentDate);
-            dataDao.insertData(documentId, 0, bytes);
+            DatabaseDocument databaseDocument = insertDocument(parent.getId(), fileName, bytes, mimeType, contentHash, currentDate);
+            changeLogDao.append(databaseDocument.getId());
             document = addToTree(databaseDocument, parentId);
+            indexContent(document, bytes);
         } else {
 
-            // Store the current document as the next version
-            Long documentId = document.getId();
-            Integer latestVersion = versionDao.maxVersion(documentId);
-            logger.debug("Latest version " + latestVersion);
-            byte[] currentBytes = dataDao.loadData(documentId, 0);
-            versionDao.insertVersion(documentId, latestVersion + 1, currentDate);
-            dataDao.insertData(documentId, latestVersion + 1, currentBytes);
-            logger.debug("New version " + latestVersion + 1  + " for the document, parentId = " + parentId + ", fileName = " + fileName);
-
-            // Overwrite the document itself
-            document.setModified(currentDate);
-            document.setSize(bytes.length);
-            document.setMimeType(mimeType);
-            documentDao.update(document);
-            versionDao.update(document.getId(), 0, currentDate);
-            dataDao.updateData(documentId, 0, bytes);
+            // The document lock serializes the writes with the other writes on this node
+            List<Lock> locks = lockDocuments(Collections.singleton(document.getId()));
+            try {
+                DatabaseDocument updated = storeVersion(document, bytes, mimeType, contentHash, currentDate);
+                logger.debug("New version for the document, parentId = " + parentId + ", fileName = " + fileName);
+                changeLogDao.append(document.getId());
 
+                // Overwrite the document itself
+                document.setModified(updated.getModified());
+                document.setSize(updated.getSize());
+                document.setMimeType(updated.getMimeType());
+                document.setContentHash(updated.getContentHash());
+                document.setCompressedSize(updated.getCompressedSize());
+                indexContent(document, bytes);
+            } finally {
+                unlock(locks);
+            }
 
             /*
             Format formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -217,6 +712,174 @@ public class DocumentManagerImpl implements DocumentManager {
         return document;
     }
 
+    /**
+     * Saves a new document with the contents as its only version, without adding it to the tree or the change log
+     */
+    private DatabaseDocument insertDocument(long parentId, String fileName, byte[] bytes, String mimeType, String contentHash, Date currentDate) {
+        DatabaseDocument databaseDocument = new DatabaseDocument();
+        databaseDocument.setName(fileName);
+        databaseDocument.setParentId(parentId);
+        databaseDocument.setModified(currentDate);
+        databaseDocument.setSize(bytes.length);
+        databaseDocument.setMimeType(mimeType);
+        databaseDocument.setContentHash(contentHash);
+        byte[] compressedBytes = databaseDocument.isCompressible() ? compress(bytes) : null;
+        databaseDocument.setCompressedSize(compressedBytes == null ? null : (long) compressedBytes.length);
+        long documentId = documentDao.save(databaseDocument);
+        versionDao.insertVersion(documentId, 0, currentDate);
+        dataDao.insertData(documentId, 0, bytes);
+        if (compressedBytes != null) {
+            dataDao.updateCompressedData(documentId, 0, compressedBytes);
+        }
+        return databaseDocument;
+    }
+
+    /**
+     * Archives the current contents as the next version and replaces them in the database. Returns the new metadata
+     * without changing the tree document. The row lock serializes the writes with the other nodes and the
+     * VersionCompactor, and the latest version is read only while holding it, as another node may have stored one
+     * since this node last replicated.
+     */
+    private DatabaseDocument storeVersion(TreeDocument document, byte[] bytes, String mimeType, String contentHash, Date currentDate) {
+        long documentId = document.getId();
+        documentDao.lockById(documentId);
+        int latestVersion = versionDao.maxVersion(documentId);
+        logger.debug("Latest version " + latestVersion);
+        versionDao.insertVersion(documentId, latestVersion + 1, currentDate);
+        archiveCurrentVersion(document, latestVersion + 1);
+
+        DatabaseDocument updated = copyOf(document);
+        updated.setModified(currentDate);
+        updated.setSize(bytes.length);
+        updated.setMimeType(mimeType);
+        updated.setContentHash(contentHash);
+        byte[] compressedBytes = updated.isCompressible() ? compress(bytes) : null;
+        updated.setCompressedSize(compressedBytes == null ? null : (long) compressedBytes.length);
+        documentDao.update(updated);
+        versionDao.update(documentId, 0, currentDate);
+        dataDao.updateData(documentId, 0, bytes);
+        dataDao.updateCompressedData(documentId, 0, compressedBytes);
+        return updated;
+    }
+
+    private static DatabaseDocument copyOf(Document document) {
+        DatabaseDocument copy = new DatabaseDocument(document.getId(), document.getName(), document.isFolder());
+        copy.setParentId(document.getParentId());
+        copy.setSize(document.getSize());
+        copy.setCompressedSize(document.getCompressedSize());
+        copy.setMimeType(document.getMimeType());
+        copy.setContentHash(document.getContentHash());
+        copy.setCreated(document.getCreated());
+        copy.setModified(document.getModified());
+        return copy;
+    }
+
+    /**
+     * Locks the documents until the transaction completes, and returns no locks. Without a transaction returns the
+     * locks for the caller to unlock. The stripes are taken in their own order, so that two transactions writing
+     * several documents can't wait for each other, and a document locked already by the same transaction is locked
+     * again without waiting. Still waits for a limited time, as a document found only later in a transaction is
+     * locked out of order.
+     */
+    private List<Lock> lockDocuments(Collection<Long> documentIds) {
+        final List<Lock> locks = new ArrayList<Lock>();
+        try {
+            for (Lock lock : documentLocks.bulkGet(documentIds)) {
+                if (!lock.tryLock(DOCUMENT_LOCK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new RuntimeException("Timed out waiting for another write of the documents " + documentIds);
+                }
+                locks.add(lock);
+            }
+        } catch (InterruptedException e) {
+            unlock(locks);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (RuntimeException e) {
+            unlock(locks);
+            throw e;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return locks;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                unlock(locks);
+            }
+        });
+        return Collections.emptyList();
+    }
+
+    private static void unlock(List<Lock> locks) {
+        for (Lock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void lockDocuments(List<TreeDocument> documents) {
+        List<Long> documentIds = new ArrayList<Long>(documents.size());
+        for (TreeDocument document : documents) {
+            documentIds.add(document.getId());
+        }
+        lockDocuments(documentIds);
+    }
+
+    /**
+     * Stores the current contents as the given version. Text versions are stored as deltas against the previous
+     * version, except for every versionFullInterval'th one which is stored in full, so that any version can be read by
+     * applying at most that many deltas. Binary contents rarely have much in common between versions.
+     */
+    private void archiveCurrentVersion(TreeDocument document, int version) {
+        long documentId = document.getId();
+        boolean full = (version - 1) % versionFullInterval == 0;
+        if (full || document.getMimeType() == null || !document.isText()) {
+            dataDao.copyData(documentId, 0, version);
+            return;
+        }
+
+        byte[] current = dataDao.loadData(documentId, 0);
+        byte[] previous = loadVersion(documentId, version - 1);
+        if (current == null || previous == null) {
+            dataDao.copyData(documentId, 0, version);
+            return;
+        }
+        byte[] delta = BinaryDelta.encode(previous, current);
+        if (delta.length > current.length / 2) {
+            dataDao.copyData(documentId, 0, version);
+            return;
+        }
+        dataDao.insertData(documentId, version, delta);
+        versionDao.setDeltaBase(documentId, version, version - 1);
+    }
+
+    /**
+     * Rebuilds the version from the closest version stored in full and the deltas after it. Returns null if the
+     * version doesn't exist.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public byte[] loadVersion(long documentId, int version) {
+        Map<Integer, Integer> deltaBases = versionDao.deltaBases(documentId);
+        LinkedList<Integer> deltas = new LinkedList<Integer>();
+        int base = version;
+        while (deltaBases.containsKey(base)) {
+            deltas.addFirst(base);
+            base = deltaBases.get(base);
+        }
+
+        byte[] bytes = dataDao.loadData(documentId, base);
+        if (bytes == null) {
+            return null;
+        }
+        for (Integer delta : deltas) {
+            bytes = BinaryDelta.apply(bytes, dataDao.loadData(documentId, delta));
+        }
+        return bytes;
+    }
+
     @Override
     public TreeDocument deleteDocument(Long documentId) {
         TreeDocument document = documentById(documentId);
@@ -224,33 +887,386 @@ public class DocumentManagerImpl implements DocumentManager {
             throw new UnauthorizedException();
         }
 
-        List<TreeDocument> children = new ArrayList<TreeDocument>(document.getChildren());
-        for (TreeDocument child : children) {
+        for (TreeDocument child : document.getChildren()) {
             deleteDocument(child.getId());
         }
 
+        dataDao.deleteData(documentId);
         documentDao.deleteById(documentId);
-        document.getParent().removeChild(document);
-        idToDocument.remove(documentId);
+        changeLogDao.append(documentId);
+        removeFromTree(document);
         return document;
     }
 
+    /**
+     * Runs the operations in order in a single transaction, and applies them to the tree only once it has been
+     * committed. The lookups wait while they're being applied, so that they find either none or all of them. A failing
+     * operation rolls back the whole batch. Always runs in a transaction of its own. The documents to be stored over
+     * are locked up front.
+     */
     @Override
-    public Collection<TreeDocument> documentsByPath(final String path) {
-        return Collections2.filter(idToDocument.values(), new Predicate<TreeDocument>() {
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<OperationResult> applyOperations(final List<BatchOperation> operations) {
+        final Batch batch = new Batch();
+        List<OperationResult> results;
+        try {
+            results = new TransactionTemplate(transactionManager).execute(new TransactionCallback<List<OperationResult>>() {
+                @Override
+                public List<OperationResult> doInTransaction(TransactionStatus status) {
+                    List<OperationResult> results = new ArrayList<OperationResult>(operations.size());
+                    batch.lock(operations);
+                    for (int i = 0; i < operations.size(); i++) {
+                        BatchOperation operation = operations.get(i);
+                        try {
+                            results.add(batch.apply(operation));
+                        } catch (RuntimeException e) {
+                            throw new RuntimeException("Operation " + (i + 1) + " on " + operation.getPath() + " failed: " + e.getMessage(), e);
+                        }
+                    }
+                    changeLogDao.appendAll(batch.changedIds);
+                    return results;
+                }
+            });
+        } finally {
+            batch.unlock();
+        }
+        reloadDocuments(batch.changedIds);
+        return results;
+    }
+
+    /**
+     * The changes of a batch which aren't in the tree yet. Paths are resolved against the documents created or stored
+     * by the batch first, and then the tree without the documents deleted by the batch.
+     */
+    private class Batch {
+        private final Map<String, DatabaseDocument> staged = new HashMap<String, DatabaseDocument>();
+        private final Set<Long> deletedIds = new HashSet<Long>();
+        private final Set<Long> changedIds = new LinkedHashSet<Long>();
+        private final List<Lock> locks = new ArrayList<Lock>();
+        private final Date currentDate = new Date();
+
+        public OperationResult apply(BatchOperation operation) {
+            String key = pathKey(operation.getPath());
+            if (key.isEmpty()) {
+                throw new UnauthorizedException();
+            }
+            switch (operation.getType()) {
+                case FOLDER:
+                    return createFolder(operation.getPath(), key);
+                case STORE:
+                    return store(operation.getPath(), key, operation.getContents());
+                case DELETE:
+                    return delete(operation.getPath(), key);
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation.getType());
+            }
+        }
+
+        private OperationResult createFolder(String path, String key) {
+            Document existing = find(key);
+            if (existing != null) {
+                if (!existing.isFolder()) {
+                    throw new RuntimeException("There is already a document with the same name");
+                }
+                return new OperationResult(path, OperationResult.EXISTS, existing.getId());
+            }
+
+            DatabaseDocument folder = new DatabaseDocument();
+            folder.setName(name(key));
+            folder.setFolder(true);
+            folder.setParentId(parentFolder(key).getId());
+            documentDao.save(folder);
+            staged.put(key, folder);
+            changedIds.add(folder.getId());
+            return new OperationResult(path, OperationResult.CREATED, folder.getId());
+        }
+
+        private OperationResult store(String path, String key, byte[] bytes) {
+            if (bytes == null) {
+                throw new IllegalArgumentException("No contents");
+            }
+            String contentHash = contentHash(bytes);
+            Document existing = find(key);
+            if (existing == null) {
+                String name = name(key);
+                DatabaseDocument document = insertDocument(parentFolder(key).getId(), name, bytes, tika.detect(bytes, name), contentHash, currentDate);
+                staged.put(key, document);
+                changedIds.add(document.getId());
+                return new OperationResult(path, OperationResult.CREATED, document.getId());
+            }
+
+            if (existing.isFolder()) {
+                throw new RuntimeException("There is already a folder with the same name");
+            }
+            if (contentHash.equals(existing.getContentHash())) {
+                return new OperationResult(path, OperationResult.UNCHANGED, existing.getId());
+            }
+            String mimeType = tika.detect(bytes, existing.getName());
+            if (existing instanceof TreeDocument) {
+                TreeDocument document = (TreeDocument) existing;
+                locks.addAll(lockDocuments(Collections.singleton(document.getId())));
+                staged.put(key, storeVersion(document, bytes, mimeType, contentHash, currentDate));
+            } else {
+                // Already stored earlier in the same batch, so there's no version worth keeping
+                DatabaseDocument document = (DatabaseDocument) existing;
+                document.setSize(bytes.length);
+                document.setMimeType(mimeType);
+                document.setContentHash(contentHash);
+                byte[] compressedBytes = document.isCompressible() ? compress(bytes) : null;
+                document.setCompressedSize(compressedBytes == null ? null : (long) compressedBytes.length);
+                documentDao.update(document);
+                dataDao.updateData(document.getId(), 0, bytes);
+                dataDao.updateCompressedData(document.getId(), 0, compressedBytes);
+            }
+            changedIds.add(existing.getId());
+            return new OperationResult(path, OperationResult.STORED, existing.getId());
+        }
+
+        /**
+         * Deletes the documents staged by the batch under the path first, deepest first, and then the ones in the
+         * tree, children first
+         */
+        private OperationResult delete(String path, String key) {
+            Document existing = find(key);
+            if (existing == null) {
+                throw new RuntimeException("Not found");
+            }
+
+            List<String> stagedKeys = new ArrayList<String>();
+            for (String stagedKey : staged.keySet()) {
+                if (stagedKey.equals(key) || stagedKey.startsWith(key + "/")) {
+                    stagedKeys.add(stagedKey);
+                }
+            }
+            Collections.sort(stagedKeys, new Comparator<String>() {
+                @Override
+                public int compare(String first, String second) {
+                    return StringUtils.countMatches(second, "/") - StringUtils.countMatches(first, "/");
+                }
+            });
+            Set<Long> documentIds = new LinkedHashSet<Long>();
+            for (String stagedKey : stagedKeys) {
+                documentIds.add(staged.remove(stagedKey).getId());
+            }
+            TreeDocument treeDocument = findInTree(key);
+            if (treeDocument != null) {
+                collectSubtree(treeDocument, documentIds);
+                deletedIds.add(treeDocument.getId());
+            }
+
+            for (Long documentId : documentIds) {
+                dataDao.deleteData(documentId);
+            }
+            documentDao.deleteByIds(new ArrayList<Long>(documentIds));
+            changedIds.addAll(documentIds);
+            return new OperationResult(path, OperationResult.DELETED, existing.getId());
+        }
+
+        private void collectSubtree(TreeDocument document, Set<Long> documentIds) {
+            for (TreeDocument child : document.getChildren()) {
+                collectSubtree(child, documentIds);
+            }
+            documentIds.add(document.getId());
+        }
+
+        /**
+         * The folder or document at the path as it is within the batch, or null if there's none
+         */
+        private Document find(String key) {
+            DatabaseDocument document = staged.get(key);
+            return document != null ? document : findInTree(key);
+        }
+
+        private TreeDocument findInTree(String key) {
+            TreeDocument treeDocument = pathToDocument.get(key);
+            for (TreeDocument ancestor = treeDocument; ancestor != null; ancestor = ancestor.getParent()) {
+                if (deletedIds.contains(ancestor.getId())) {
+                    return null;
+                }
+            }
+            return treeDocument;
+        }
+
+        private Document parentFolder(String key) {
+            String parentKey = key.contains("/") ? key.substring(0, key.lastIndexOf('/')) : "";
+            Document parent = find(parentKey);
+            if (parent == null || !parent.isFolder()) {
+                throw new RuntimeException("No folder /" + parentKey);
+            }
+            return parent;
+        }
+
+        private String name(String key) {
+            return key.substring(key.lastIndexOf('/') + 1);
+        }
+
+        /**
+         * Locks the documents already in the tree that the operations store over
+         */
+        public void lock(List<BatchOperation> operations) {
+            Set<Long> documentIds = new LinkedHashSet<Long>();
+            for (BatchOperation operation : operations) {
+                TreeDocument document = operation.getType() == BatchOperation.Type.STORE ? documentFromPath(operation.getPath()) : null;
+                if (document != null && !document.isFolder()) {
+                    documentIds.add(document.getId());
+                }
+            }
+            locks.addAll(lockDocuments(documentIds));
+        }
+
+        /**
+         * Only needed without a transaction synchronization, otherwise the locks are released on completion
+         */
+        public void unlock() {
+            DocumentManagerImpl.unlock(locks);
+        }
+    }
+
+    /**
+     * Removes a single document, the children need to be removed before their parent
+     */
+    private void removeFromTree(final TreeDocument document) {
+        document.getParent().removeChild(document);
+        idToDocument.remove(document.getId());
+        pathToDocument.remove(pathKey(document.getPath()));
+        pathIndex.remove(document);
+        afterCommit(new Runnable() {
             @Override
-            public boolean apply(TreeDocument treeDocument) {
-                return StringUtils.containsIgnoreCase(treeDocument.getPath(), path) && treeDocument.isViewable() && !treeDocument.isRoot();
+            public void run() {
+                contentIndex.remove(document.getId());
             }
         });
     }
 
+    /**
+     * Computed once per write so that the public requests can be validated without touching the contents
+     */
+    private static String contentHash(byte[] bytes) {
+        return Hashing.sha1().hashBytes(bytes).toString();
+    }
+
+    /**
+     * Gzips the contents once per version so that the public requests never need to compress them on the fly.
+     * Returns null if compressing doesn't save enough to be worth it.
+     */
+    private static byte[] compress(byte[] bytes) {
+        if (bytes.length < MIN_COMPRESSIBLE_SIZE) {
+            return null;
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+        try {
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            out.write(bytes);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (compressed.size() > bytes.length * 9 / 10) {
+            return null;
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * The index is updated only after the transaction commits, so that a rolled back upload doesn't leave its words
+     * in the index. Storing a document may also turn it into a binary one, which removes it from the index.
+     */
+    private void indexContent(final TreeDocument document, byte[] bytes) {
+        final String text = isIndexable(document) ? new String(bytes, Charsets.UTF_8) : null;
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                if (text == null) {
+                    contentIndex.remove(document.getId());
+                } else {
+                    contentIndex.index(document.getId(), text);
+                }
+            }
+        });
+    }
+
+    private static void afterCommit(final Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Only the contents of the returned documents are read, for the snippets
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public List<ContentMatch> searchContent(String query, int limit) {
+        List<ContentMatch> matches = new ArrayList<ContentMatch>();
+        for (ContentIndex.Hit hit : contentIndex.search(query, limit)) {
+            TreeDocument document = documentById(hit.getDocumentId());
+            if (document != null) {
+                matches.add(new ContentMatch(document, hit.getScore(), snippet(document, query)));
+            }
+        }
+        return matches;
+    }
+
+    private String snippet(TreeDocument document, String query) {
+        byte[] bytes = contentCache.isCacheable(document) ? contentCache.loadData(document) : dataDao.loadData(document.getId(), 0);
+        if (bytes == null) {
+            return "";
+        }
+        String text = new String(bytes, Charsets.UTF_8);
+        String lowerCaseText = text.toLowerCase(Locale.ENGLISH);
+
+        // The whole query if it appears as such, otherwise the first of its words
+        int index = lowerCaseText.indexOf(query.toLowerCase(Locale.ENGLISH));
+        int length = query.length();
+        if (index < 0) {
+            List<String> terms = ContentIndex.terms(query);
+            index = terms.isEmpty() ? -1 : lowerCaseText.indexOf(terms.get(0));
+            length = terms.isEmpty() ? 0 : terms.get(0).length();
+        }
+        if (index < 0 || lowerCaseText.length() != text.length()) {
+            return StringUtils.abbreviate(collapseWhitespace(text.substring(0, Math.min(text.length(), 4 * SNIPPET_CONTEXT))), 2 * SNIPPET_CONTEXT);
+        }
+
+        int start = Math.max(0, index - SNIPPET_CONTEXT);
+        int end = Math.min(text.length(), index + length + SNIPPET_CONTEXT);
+        return (start > 0 ? "..." : "") + collapseWhitespace(text.substring(start, end)) + (end < text.length() ? "..." : "");
+    }
+
+    private static String collapseWhitespace(String text) {
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Storing a document may change its mime type, so the viewable documents are picked when searching instead of
+     * when indexing.
+     */
+    @Override
+    public List<TreeDocument> documentsByPath(String path, int limit) {
+        return pathIndex.search(path, new Predicate<TreeDocument>() {
+            @Override
+            public boolean apply(TreeDocument treeDocument) {
+                return treeDocument.isViewable();
+            }
+        }, limit);
+    }
+
     private TreeDocument addToTree(DatabaseDocument databaseDocument, Long parentId) {
         TreeDocument treeDocument = new TreeDocument(databaseDocument);
         TreeDocument parent = parentFromId(parentId);
-        parent.addChild(treeDocument);
         treeDocument.setParent(parent);
+        parent.addChild(treeDocument);
         idToDocument.put(treeDocument.getId(), treeDocument);
+        pathToDocument.put(pathKey(treeDocument.getPath()), treeDocument);
+        pathIndex.add(treeDocument);
         return treeDocument;
     }
 }
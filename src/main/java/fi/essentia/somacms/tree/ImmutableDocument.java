@@ -17,8 +17,10 @@ public class ImmutableDocument implements Document {
     @Getter private long id;
     @Getter private String name;
     @Getter private long size;
+    @Getter private Long compressedSize;
     @Getter private Long parentId;
     @Getter private String mimeType;
+    @Getter private String contentHash;
     @Getter private boolean folder;
     @Getter private Date created;
     @Getter private Date modified;
@@ -28,8 +30,10 @@ public class ImmutableDocument implements Document {
         this.id = document.getId();
         this.name = document.getName();
         this.size = document.getSize();
+        this.compressedSize = document.getCompressedSize();
         this.parentId = document.getParentId();
         this.mimeType = document.getMimeType();
+        this.contentHash = document.getContentHash();
         this.folder = document.isFolder();
         this.created = document.getCreated();
         this.modified = document.getModified();
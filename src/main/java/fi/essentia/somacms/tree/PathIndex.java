@@ -0,0 +1,150 @@
+package fi.essentia.somacms.tree;
+
+import com.google.common.base.Predicate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trigram index over the lower-cased document paths. A substring query only verifies the documents in the shortest
+ * posting list of its trigrams instead of every document in the tree. Updated by the DocumentManagerImpl whenever
+ * documents are added to or removed from the tree; the queries don't take any locks.
+ */
+class PathIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private final Map<TreeDocument, String> documentToPath = new ConcurrentHashMap<TreeDocument, String>();
+    private final Map<Long, Set<TreeDocument>> postings = new ConcurrentHashMap<Long, Set<TreeDocument>>();
+
+    public synchronized void add(TreeDocument document) {
+        String path = normalize(document.getPath());
+        documentToPath.put(document, path);
+        for (Long gram : grams(path)) {
+            Set<TreeDocument> documents = postings.get(gram);
+            if (documents == null) {
+                documents = Collections.newSetFromMap(new ConcurrentHashMap<TreeDocument, Boolean>());
+                postings.put(gram, documents);
+            }
+            documents.add(document);
+        }
+    }
+
+    public synchronized void remove(TreeDocument document) {
+        String path = documentToPath.remove(document);
+        if (path == null) {
+            return;
+        }
+        for (Long gram : grams(path)) {
+            Set<TreeDocument> documents = postings.get(gram);
+            if (documents != null) {
+                documents.remove(document);
+                if (documents.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns at most limit documents accepted by the filter whose path contains the query, ignoring case. Matches in
+     * the document name come before matches in the folders, then earlier and shorter matches first.
+     */
+    public List<TreeDocument> search(String query, Predicate<TreeDocument> filter, int limit) {
+        String normalizedQuery = normalize(query);
+        List<Match> matches = new ArrayList<Match>();
+        for (TreeDocument document : candidates(normalizedQuery)) {
+            String path = documentToPath.get(document);
+            if (path == null) {
+                continue;
+            }
+            int index = path.indexOf(normalizedQuery);
+            if (index >= 0 && filter.apply(document)) {
+                matches.add(new Match(document, path, normalizedQuery, index));
+            }
+        }
+        Collections.sort(matches);
+
+        List<TreeDocument> documents = new ArrayList<TreeDocument>(Math.min(limit, matches.size()));
+        for (Match match : matches) {
+            if (documents.size() >= limit) {
+                break;
+            }
+            documents.add(match.document);
+        }
+        return documents;
+    }
+
+    /**
+     * The shortest posting list of the query trigrams, or every document if the query is too short to have any
+     */
+    private Collection<TreeDocument> candidates(String query) {
+        if (query.length() < GRAM_LENGTH) {
+            return documentToPath.keySet();
+        }
+
+        Set<TreeDocument> shortest = null;
+        for (Long gram : grams(query)) {
+            Set<TreeDocument> documents = postings.get(gram);
+            if (documents == null) {
+                return Collections.emptySet();
+            }
+            if (shortest == null || documents.size() < shortest.size()) {
+                shortest = documents;
+            }
+        }
+        return shortest;
+    }
+
+    private static Set<Long> grams(String text) {
+        Set<Long> grams = new HashSet<Long>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        return grams;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static class Match implements Comparable<Match> {
+        private final TreeDocument document;
+        private final int rank;
+        private final int index;
+        private final int length;
+        private final String path;
+
+        private Match(TreeDocument document, String path, String query, int index) {
+            this.document = document;
+            this.path = path;
+            this.index = index;
+            this.length = path.length();
+
+            String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            String name = trimmed.substring(trimmed.lastIndexOf('/') + 1);
+            if (name.equals(query)) {
+                rank = 0;
+            } else if (name.startsWith(query)) {
+                rank = 1;
+            } else if (name.contains(query)) {
+                rank = 2;
+            } else {
+                rank = 3;
+            }
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            if (index != other.index) {
+                return index < other.index ? -1 : 1;
+            }
+            if (length != other.length) {
+                return length < other.length ? -1 : 1;
+            }
+            return path.compareTo(other.path);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.models.DocumentVersion;
+
+import java.util.*;
+
+/**
+ * Decides which archived versions of a document are no longer worth keeping. Each rule is disabled with zero, and the
+ * newest archived version is always kept because the next version may be stored as a delta against it.
+ */
+public class RetentionPolicy {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final int keepVersions;
+    private final int thinAfterDays;
+    private final long maxBytes;
+
+    /**
+     * @param keepVersions how many of the newest versions are kept at most
+     * @param thinAfterDays after how many days only the newest version of each day is kept
+     * @param maxBytes how many bytes the kept versions may take, counting from the newest one
+     */
+    public RetentionPolicy(int keepVersions, int thinAfterDays, long maxBytes) {
+        this.keepVersions = keepVersions;
+        this.thinAfterDays = thinAfterDays;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param versions the archived versions, the newest first
+     * @param sizes the stored size of each version
+     * @return the versions to remove, the oldest first
+     */
+    public SortedSet<Integer> expiredVersions(List<DocumentVersion> versions, Map<Integer, Long> sizes, long now) {
+        SortedSet<Integer> expired = new TreeSet<Integer>();
+        long bytes = 0;
+        long previousDay = Long.MIN_VALUE;
+        for (int i = 0; i < versions.size(); i++) {
+            DocumentVersion version = versions.get(i);
+            int number = version.getDocument_version();
+            long created = version.getCreation_time() == null ? now : version.getCreation_time().getTime();
+            long day = created / DAY_MILLIS;
+            if (i == 0) {
+                bytes += size(sizes, number);
+                previousDay = day;
+                continue;
+            }
+
+            boolean old = thinAfterDays > 0 && now - created > thinAfterDays * DAY_MILLIS;
+            if ((keepVersions > 0 && i >= keepVersions) || (old && day == previousDay)
+                    || (maxBytes > 0 && bytes + size(sizes, number) > maxBytes)) {
+                expired.add(number);
+            } else {
+                bytes += size(sizes, number);
+                previousDay = day;
+            }
+        }
+        return expired;
+    }
+
+    public boolean isEnabled() {
+        return keepVersions > 0 || thinAfterDays > 0 || maxBytes > 0;
+    }
+
+    private static long size(Map<Integer, Long> sizes, int version) {
+        Long size = sizes.get(version);
+        return size == null || size < 0 ? 0 : size;
+    }
+}
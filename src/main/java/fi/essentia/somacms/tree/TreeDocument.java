@@ -10,6 +10,7 @@ import lombok.ToString;
 import org.apache.commons.lang.StringUtils;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Wraps the normal database document better support keeping the document metadata in memory.
@@ -17,64 +18,132 @@ import java.util.*;
 public class TreeDocument implements Document {
     public static final long ROOT_ID = 0;
 
-    @Delegate private final DatabaseDocument databaseDocument;
-    @Getter @Setter private TreeDocument parent;
+    @Delegate(excludes = PathChanges.class) private final DatabaseDocument databaseDocument;
+    @Getter private TreeDocument parent;
 
-    private Map<String, TreeDocument> nameToChild = new HashMap<String, TreeDocument>();
-    private SortedSet<TreeDocument> children = new TreeSet<TreeDocument>(new TreeDocumentComparator());
+    // Built from the parent's cached values and dropped whenever the document or any of its ancestors changes. Both
+    // happen under PATH_LOCK, so that a value built from the old parent's path is never stored after it was dropped.
+    // Only the cache misses take the lock.
+    private static final Object PATH_LOCK = new Object();
+    private volatile String path;
+    private volatile List<Document> breadcrumbs;
+
+    // Replaced as a whole on every change, so the readers never lock and never see a partially updated folder
+    private final AtomicReference<Children> children = new AtomicReference<Children>(Children.EMPTY);
 
     public TreeDocument(DatabaseDocument databaseDocument) {
         this.databaseDocument = databaseDocument;
     }
 
-    public synchronized void addChild(TreeDocument document) {
-        nameToChild.put(document.getName(), document);
-        children.add(document);
+    public void addChild(TreeDocument document) {
+        addChildren(Collections.singletonList(document));
+    }
+
+    /**
+     * Adds all the documents with a single copy of the children, used when building the tree
+     */
+    public void addChildren(Collection<TreeDocument> documents) {
+        Children current;
+        do {
+            current = children.get();
+        } while (!children.compareAndSet(current, current.with(documents)));
+    }
+
+    public TreeDocument childByName(String name) {
+        return children.get().nameToChild.get(name);
+    }
+
+    /**
+     * An immutable snapshot sorted folders first and then by name, which doesn't change while it's being iterated
+     */
+    public List<TreeDocument> getChildren() {
+        return children.get().sorted;
+    }
+
+    public void setParent(TreeDocument parent) {
+        this.parent = parent;
+        invalidatePaths();
     }
 
-    public synchronized TreeDocument childByName(String name) {
-        return nameToChild.get(name);
+    public void setName(String name) {
+        databaseDocument.setName(name);
+        invalidatePaths();
     }
 
-    public synchronized Collection<TreeDocument> getChildren() {
-        return Collections.unmodifiableCollection(children);
+    public void setFolder(boolean folder) {
+        databaseDocument.setFolder(folder);
+        invalidatePaths();
     }
 
     public String getPath() {
-        List<Document> pathElements = getBreadcrumbs();
-        StringBuilder path = new StringBuilder("/");
-        for (int i=1; i<pathElements.size()-1; i++) {
-            path.append(pathElements.get(i).getName());
-            path.append("/");
+        String path = this.path;
+        if (path != null) {
+            return path;
         }
-
-        if (!isRoot()) {
-            path.append(getName());
-            if (isFolder()) {
-                path.append("/");
+        synchronized (PATH_LOCK) {
+            path = this.path;
+            if (path == null) {
+                if (isRoot()) {
+                    path = "/";
+                } else {
+                    path = parent.getPath() + getName() + (isFolder() ? "/" : "");
+                }
+                this.path = path;
             }
+            return path;
         }
-        return path.toString();
     }
 
     public List<Document> getBreadcrumbs() {
-        LinkedList<Document> pathElements = new LinkedList<Document>();
+        List<Document> breadcrumbs = this.breadcrumbs;
+        if (breadcrumbs != null) {
+            return breadcrumbs;
+        }
+        synchronized (PATH_LOCK) {
+            breadcrumbs = this.breadcrumbs;
+            if (breadcrumbs == null) {
+                if (isRoot()) {
+                    breadcrumbs = Collections.<Document>singletonList(this);
+                } else {
+                    List<Document> parentBreadcrumbs = parent.getBreadcrumbs();
+                    List<Document> pathElements = new ArrayList<Document>(parentBreadcrumbs.size() + 1);
+                    pathElements.addAll(parentBreadcrumbs);
+                    pathElements.add(this);
+                    breadcrumbs = Collections.unmodifiableList(pathElements);
+                }
+                this.breadcrumbs = breadcrumbs;
+            }
+            return breadcrumbs;
+        }
+    }
 
-        TreeDocument document = this;
-        while (!document.isRoot()) {
-            pathElements.addFirst(document);
-            document = document.getParent();
+    /**
+     * Drops the cached path of the document and all its descendants. Values are always built from the parent's
+     * values, so if a document doesn't have them cached, none of its descendants can have them either.
+     */
+    private void invalidatePaths() {
+        synchronized (PATH_LOCK) {
+            if (path == null && breadcrumbs == null) {
+                return;
+            }
+
+            path = null;
+            breadcrumbs = null;
+            for (TreeDocument child : getChildren()) {
+                child.invalidatePaths();
+            }
         }
-        pathElements.addFirst(document);
-        return pathElements;
     }
 
+    /**
+     * The thumbnail URL changes with the contents, so that the browser may cache it for good
+     */
     public String getThumbail() {
         if (isFolder()) {
             return "/resources/images/folder.png";
         }
         if (isImage()) {
-            return getPath();
+            return getContentHash() == null ? getPath() : "/admin/thumbnail/" + getId() + "?v=" + getContentHash();
         }
 
         return "/resources/images/document.png";
@@ -84,14 +153,17 @@ public class TreeDocument implements Document {
         return getId() == ROOT_ID;
     }
 
-    public synchronized void removeChild(Document document) {
-        TreeDocument removedDocument = nameToChild.remove(document.getName());
-        if (removedDocument != null) {
-            children.remove(removedDocument);
-        }
+    public void removeChild(Document document) {
+        Children current;
+        do {
+            current = children.get();
+            if (!current.nameToChild.containsKey(document.getName())) {
+                return;
+            }
+        } while (!children.compareAndSet(current, current.without(document.getName())));
     }
 
-    public synchronized Document getShallowCopy() {
+    public Document getShallowCopy() {
         if (isFolder()) {
             return new ImmutableFolder(this);
         } else {
@@ -99,6 +171,82 @@ public class TreeDocument implements Document {
         }
     }
 
+    /**
+     * Setters of the database document that change the path, so they're not delegated as such
+     */
+    private interface PathChanges {
+        void setName(String name);
+        void setFolder(boolean folder);
+    }
+
+    private static class Children {
+        private static final Comparator<TreeDocument> COMPARATOR = new TreeDocumentComparator();
+        private static final Children EMPTY = new Children(Collections.<String, TreeDocument>emptyMap());
+
+        private final Map<String, TreeDocument> nameToChild;
+        private final List<TreeDocument> sorted;
+
+        private Children(Map<String, TreeDocument> nameToChild) {
+            this(nameToChild, sort(nameToChild.values()));
+        }
+
+        private Children(Map<String, TreeDocument> nameToChild, List<TreeDocument> sorted) {
+            this.nameToChild = nameToChild;
+            this.sorted = Collections.unmodifiableList(sorted);
+        }
+
+        private static List<TreeDocument> sort(Collection<TreeDocument> documents) {
+            List<TreeDocument> sorted = new ArrayList<TreeDocument>(documents);
+            Collections.sort(sorted, COMPARATOR);
+            return sorted;
+        }
+
+        /**
+         * A single document is inserted into the sorted copy with a binary search, so that adding the children one by
+         * one doesn't sort all of them again every time. A larger batch is sorted as a whole.
+         */
+        private Children with(Collection<TreeDocument> documents) {
+            Map<String, TreeDocument> copy = new HashMap<String, TreeDocument>(nameToChild);
+            for (TreeDocument document : documents) {
+                copy.put(document.getName(), document);
+            }
+            if (documents.size() != 1) {
+                return new Children(copy);
+            }
+
+            TreeDocument document = documents.iterator().next();
+            List<TreeDocument> sortedCopy = new ArrayList<TreeDocument>(sorted.size() + 1);
+            sortedCopy.addAll(sorted);
+            TreeDocument replaced = nameToChild.get(document.getName());
+            if (replaced != null) {
+                remove(sortedCopy, replaced);
+            }
+            int index = Collections.binarySearch(sortedCopy, document, COMPARATOR);
+            sortedCopy.add(index < 0 ? -index - 1 : index, document);
+            return new Children(copy, sortedCopy);
+        }
+
+        private Children without(String name) {
+            Map<String, TreeDocument> copy = new HashMap<String, TreeDocument>(nameToChild);
+            TreeDocument removed = copy.remove(name);
+            List<TreeDocument> sortedCopy = new ArrayList<TreeDocument>(sorted);
+            if (removed != null) {
+                remove(sortedCopy, removed);
+            }
+            return new Children(copy, sortedCopy);
+        }
+
+        private static void remove(List<TreeDocument> sorted, TreeDocument document) {
+            int index = Collections.binarySearch(sorted, document, COMPARATOR);
+            if (index < 0 || sorted.get(index) != document) {
+                index = sorted.indexOf(document);
+            }
+            if (index >= 0) {
+                sorted.remove(index);
+            }
+        }
+    }
+
     private static class TreeDocumentComparator implements Comparator<TreeDocument> {
         @Override
         public int compare(TreeDocument first, TreeDocument second) {
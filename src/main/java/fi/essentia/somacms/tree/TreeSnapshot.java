@@ -0,0 +1,151 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.models.Document;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the document metadata, tagged with the latest change in the change log when it was loaded from the
+ * database. Lets the DocumentManagerImpl start by reading a local file and reloading only the documents changed after
+ * the snapshot, instead of loading every document from the database.
+ */
+class TreeSnapshot {
+    private static final int MAGIC = 0x534f4d41;
+    private static final int FORMAT_VERSION = 1;
+    private static final long NULL = Long.MIN_VALUE;
+
+    private final long changeId;
+    private final Date changeTime;
+    private final List<DatabaseDocument> documents;
+
+    TreeSnapshot(long changeId, Date changeTime, List<DatabaseDocument> documents) {
+        this.changeId = changeId;
+        this.changeTime = changeTime;
+        this.documents = documents;
+    }
+
+    public long getChangeId() {
+        return changeId;
+    }
+
+    public Date getChangeTime() {
+        return changeTime;
+    }
+
+    public List<DatabaseDocument> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Writes to a temporary file first, so that a crash while writing never leaves a truncated snapshot behind
+     */
+    public static void write(File file, long changeId, Date changeTime, Collection<? extends Document> documents) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        CRC32 checksum = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)), checksum));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(changeId);
+            out.writeLong(changeTime.getTime());
+            out.writeInt(documents.size());
+            for (Document document : documents) {
+                out.writeLong(document.getId());
+                writeLong(out, document.getParentId());
+                writeString(out, document.getName());
+                out.writeBoolean(document.isFolder());
+                out.writeLong(document.getSize());
+                writeLong(out, document.getCompressedSize());
+                writeString(out, document.getMimeType());
+                writeString(out, document.getContentHash());
+                writeDate(out, document.getCreated());
+                writeDate(out, document.getModified());
+            }
+            out.flush();
+            out.writeLong(checksum.getValue());
+        } finally {
+            out.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Throws an IOException if the file is truncated, corrupt or written in an older format
+     */
+    public static TreeSnapshot read(File file) throws IOException {
+        CRC32 checksum = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), checksum));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a snapshot in the current format");
+            }
+            long changeId = in.readLong();
+            Date changeTime = new Date(in.readLong());
+            int count = in.readInt();
+            List<DatabaseDocument> documents = new ArrayList<DatabaseDocument>(count);
+            for (int i = 0; i < count; i++) {
+                DatabaseDocument document = new DatabaseDocument();
+                document.setId(in.readLong());
+                document.setParentId(readLong(in));
+                document.setName(readString(in));
+                document.setFolder(in.readBoolean());
+                document.setSize(in.readLong());
+                document.setCompressedSize(readLong(in));
+                document.setMimeType(readString(in));
+                document.setContentHash(readString(in));
+                document.setCreated(readDate(in));
+                document.setModified(readDate(in));
+                documents.add(document);
+            }
+
+            long expectedChecksum = checksum.getValue();
+            if (in.readLong() != expectedChecksum) {
+                throw new IOException("Checksum mismatch");
+            }
+            return new TreeSnapshot(changeId, changeTime, documents);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeLong(value == null ? NULL : value);
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        long value = in.readLong();
+        return value == NULL ? null : value;
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        writeLong(out, date == null ? null : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        Long time = readLong(in);
+        return time == null ? null : new Date(time);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
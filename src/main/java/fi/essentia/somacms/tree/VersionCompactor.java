@@ -0,0 +1,195 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.dao.DataDao;
+import fi.essentia.somacms.dao.DocumentDao;
+import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.json.CompactionReport;
+import fi.essentia.somacms.models.DocumentVersion;
+import fi.essentia.somacms.util.BinaryDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+
+/**
+ * Removes the archived versions that the RetentionPolicy no longer keeps. Runs periodically in the background, and
+ * removes only a few versions per transaction with a pause in between, so that the document rows are never locked
+ * for long while the live uploads are waiting for them.
+ */
+@Component
+public class VersionCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(VersionCompactor.class);
+    private static final int DOCUMENT_BATCH_SIZE = 100;
+
+    @Autowired DocumentDao documentDao;
+    @Autowired DataDao dataDao;
+    @Autowired VersionDao versionDao;
+    @Autowired DocumentManager documentManager;
+    @Autowired PlatformTransactionManager transactionManager;
+    @Value("${retention.keepVersions:0}") int keepVersions;
+    @Value("${retention.thinAfterDays:0}") int thinAfterDays;
+    @Value("${retention.maxBytesPerDocument:0}") long maxBytesPerDocument;
+    @Value("${retention.batchSize:20}") int batchSize = 20;
+    @Value("${retention.pauseMillis:100}") long pauseMillis;
+    @Value("${versions.fullInterval:16}") int versionFullInterval = 16;
+
+    private volatile CompactionReport lastReport;
+
+    /**
+     * Goes through every document with archived versions. Called by the scheduler configured in servlet-context.xml.
+     */
+    public synchronized void compact() {
+        RetentionPolicy policy = new RetentionPolicy(keepVersions, thinAfterDays, maxBytesPerDocument);
+        if (!policy.isEnabled()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int versionsRemoved = 0;
+        long bytesReclaimed = 0;
+        int documentsExamined = 0;
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        try {
+            long lastDocumentId = -1;
+            List<Long> documentIds;
+            while (!(documentIds = versionDao.documentsWithVersions(lastDocumentId, DOCUMENT_BATCH_SIZE)).isEmpty()) {
+                for (Long documentId : documentIds) {
+                    documentsExamined++;
+                    Batch batch;
+                    do {
+                        // Counted only once committed, a batch rolled back throws
+                        batch = transactionTemplate.execute(compactBatch(documentId, policy, start));
+                        versionsRemoved += batch.versionsRemoved;
+                        bytesReclaimed += batch.bytesReclaimed;
+                        if (batch.more) {
+                            Thread.sleep(pauseMillis);
+                        }
+                    } while (batch.more);
+                    lastDocumentId = documentId;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("Compaction interrupted");
+        } catch (RuntimeException e) {
+            logger.error("Compaction failed", e);
+        }
+
+        lastReport = new CompactionReport(new Date(), System.currentTimeMillis() - start, documentsExamined, versionsRemoved, bytesReclaimed);
+        logger.info("Removed " + versionsRemoved + " versions of " + documentsExamined + " documents, reclaimed " + bytesReclaimed + " bytes");
+    }
+
+    /**
+     * Null until the first run has finished
+     */
+    public CompactionReport getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Removes at most batchSize of the oldest expired versions of the document. The policy is evaluated only after
+     * locking the document, so that a version stored meanwhile is taken into account.
+     */
+    private TransactionCallback<Batch> compactBatch(final long documentId, final RetentionPolicy policy, final long now) {
+        return new TransactionCallback<Batch>() {
+            @Override
+            public Batch doInTransaction(TransactionStatus status) {
+                Batch batch = new Batch();
+                documentDao.lockById(documentId);
+                List<DocumentVersion> versions = new ArrayList<DocumentVersion>();
+                Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+                for (DocumentVersion version : versionDao.findByDocumentId(documentId)) {
+                    if (version.getDocument_version() > 0) {
+                        versions.add(version);
+                        sizes.put(version.getDocument_version(), dataDao.dataSize(documentId, version.getDocument_version()));
+                    }
+                }
+
+                SortedSet<Integer> expired = policy.expiredVersions(versions, sizes, now);
+                if (expired.isEmpty()) {
+                    return batch;
+                }
+                Set<Integer> removed = new TreeSet<Integer>();
+                for (Integer version : expired) {
+                    if (removed.size() == batchSize) {
+                        break;
+                    }
+                    removed.add(version);
+                }
+
+                rebaseDeltas(documentId, sizes.keySet(), removed, sizes, batch);
+                for (Integer version : removed) {
+                    batch.bytesReclaimed += dataDao.deleteData(documentId, version);
+                    versionDao.deleteVersion(documentId, version);
+                    batch.versionsRemoved++;
+                }
+                batch.more = expired.size() > removed.size();
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Stores the remaining versions that are deltas against a removed version against the closest earlier remaining
+     * version instead, or in full if there's none or the chain of deltas would get longer than versionFullInterval.
+     * Goes from the oldest up, so that every new base has already been fixed.
+     */
+    private void rebaseDeltas(long documentId, Collection<Integer> versions, Set<Integer> removed, Map<Integer, Long> sizes, Batch batch) {
+        Map<Integer, Integer> deltaBases = versionDao.deltaBases(documentId);
+        TreeSet<Integer> remaining = new TreeSet<Integer>(versions);
+        remaining.removeAll(removed);
+        for (Integer version : remaining) {
+            Integer base = deltaBases.get(version);
+            if (base == null || !removed.contains(base)) {
+                continue;
+            }
+
+            byte[] bytes = documentManager.loadVersion(documentId, version);
+            Integer newBase = remaining.lower(version);
+            byte[] data = bytes;
+            if (newBase != null && chainLength(deltaBases, newBase) + 1 < versionFullInterval) {
+                byte[] delta = BinaryDelta.encode(documentManager.loadVersion(documentId, newBase), bytes);
+                if (delta.length <= bytes.length / 2) {
+                    data = delta;
+                }
+            }
+            if (data == bytes) {
+                newBase = null;
+            }
+
+            dataDao.updateData(documentId, version, data);
+            versionDao.setDeltaBase(documentId, version, newBase);
+            if (newBase == null) {
+                deltaBases.remove(version);
+            } else {
+                deltaBases.put(version, newBase);
+            }
+            batch.bytesReclaimed -= data.length - Math.max(0, sizes.get(version));
+        }
+    }
+
+    private static int chainLength(Map<Integer, Integer> deltaBases, Integer version) {
+        int length = 0;
+        while (deltaBases.containsKey(version)) {
+            version = deltaBases.get(version);
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * What a single transaction removed, and whether the document has more expired versions left
+     */
+    private static class Batch {
+        private int versionsRemoved;
+        private long bytesReclaimed;
+        private boolean more;
+    }
+}
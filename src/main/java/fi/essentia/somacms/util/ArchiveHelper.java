@@ -1,168 +1,382 @@
 package fi.essentia.somacms.util;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.json.Imported;
 import fi.essentia.somacms.tree.DocumentManager;
 import fi.essentia.somacms.tree.TreeDocument;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 /**
- * Stores multiple documents to the given folder by reading their contents from a ZIP archive
+ * Stores multiple documents to the given folder by reading their contents from a ZIP archive, and writes a folder
+ * with everything in it as a ZIP archive
  */
 @Component
 public class ArchiveHelper {
-    @Autowired private DocumentManager documentManager;
-    @Autowired private ReadOnlyDataDao readOnlyDataDao;
-
-    public void storeDocuments(TreeDocument targetFolder, byte[] bytes) throws IOException, ParseException {
-        List<DocumentEntry> entries = new ArrayList<DocumentEntry>();
-        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes));
-        ZipEntry zipEntry = in.getNextEntry();
-        while(zipEntry!=null){
-            File file = new File(zipEntry.getName());
-            if (zipEntry.isDirectory()) {
-                entries.add(new DocumentEntry(true, file.getParent(), file.getName(), null));
-            } else {
-                ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-                IOUtils.copy(in, out);
-                out.close();
-                entries.add(new DocumentEntry(false, file.getParent(), file.getName(), out.toByteArray()));
+    private static final Set<String> COMPRESSED_MIME_TYPES = ImmutableSet.of("image/jpeg", "image/png", "image/gif",
+            "image/webp", "audio/mpeg", "audio/ogg", "audio/mp4", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-rar-compressed", "application/x-7z-compressed", "application/pdf");
+
+    @Autowired DocumentManager documentManager;
+    @Autowired ReadOnlyDataDao readOnlyDataDao;
+    @Autowired PlatformTransactionManager transactionManager;
+    @Value("${archive.windowEntries:200}") int windowEntries = 200;
+    @Value("${archive.windowBytes:8388608}") long windowBytes = 8388608;
+    @Value("${archive.prefetchThreads:2}") int prefetchThreads = 2;
+    @Value("${archive.prefetchEntries:8}") int prefetchEntries = 8;
+    @Value("${archive.prefetchBytes:16777216}") long prefetchBytes = 16777216;
+    @Value("${archive.streamBytes:1048576}") long streamBytes = 1048576;
+    private ExecutorService prefetchExecutor;
+
+    /**
+     * Reads the archive one entry at a time and stores the documents in windows of at most windowEntries documents or
+     * windowBytes bytes, each in a single transaction. Folders are created as they are needed, so the entries may be
+     * in any order. Files whose contents haven't changed are skipped. If storing a window fails, the earlier windows
+     * stay stored.
+     */
+    public Imported storeDocuments(TreeDocument targetFolder, InputStream archive) throws IOException {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        List<DocumentEntry> window = new ArrayList<DocumentEntry>();
+        long windowSize = 0;
+        int stored = 0;
+        int skipped = 0;
+        ZipInputStream in = new ZipInputStream(archive);
+        try {
+            ZipEntry zipEntry;
+            while ((zipEntry = in.getNextEntry()) != null) {
+                List<String> path = entryPath(zipEntry.getName());
+                if (path.isEmpty()) {
+                    continue;
+                }
+                byte[] data = zipEntry.isDirectory() ? null : IOUtils.toByteArray(in);
+                window.add(new DocumentEntry(path, data));
+                windowSize += data == null ? 0 : data.length;
+                if (window.size() >= windowEntries || windowSize >= windowBytes) {
+                    Imported imported = storeWindow(transactionTemplate, targetFolder, window);
+                    stored += imported.getStored();
+                    skipped += imported.getSkipped();
+                    window.clear();
+                    windowSize = 0;
+                }
             }
-            zipEntry = in.getNextEntry();
-        }
-        in.closeEntry();
-        in.close();
-
-        Collections.sort(entries);
-        for (DocumentEntry entry : entries) {
-            TreeDocument parent;
-            if (entry.path == null) {
-                parent = documentManager.documentById(targetFolder.getId());
-                if (parent == null) {
-                    throw new RuntimeException("Failed to find the target folder");
+            Imported imported = storeWindow(transactionTemplate, targetFolder, window);
+            stored += imported.getStored();
+            skipped += imported.getSkipped();
+        } finally {
+            in.close();
+        }
+        return new Imported(stored, skipped);
+    }
+
+    private Imported storeWindow(TransactionTemplate transactionTemplate, final TreeDocument targetFolder, final List<DocumentEntry> window) {
+        final Set<Long> changedIds = new HashSet<Long>();
+        try {
+            return transactionTemplate.execute(new TransactionCallback<Imported>() {
+                @Override
+                public Imported doInTransaction(TransactionStatus status) {
+                    int stored = 0;
+                    int skipped = 0;
+                    documentManager.lockDocuments(existingFiles(targetFolder, window));
+                    for (DocumentEntry entry : window) {
+                        TreeDocument parent = documentManager.documentById(targetFolder.getId());
+                        if (parent == null) {
+                            throw new RuntimeException("Failed to find the target folder");
+                        }
+                        int folders = entry.data == null ? entry.path.size() : entry.path.size() - 1;
+                        for (String folder : entry.path.subList(0, folders)) {
+                            parent = childFolder(parent, folder, changedIds);
+                        }
+                        if (entry.data == null) {
+                            continue;
+                        }
+
+                        // storeDocument itself skips the contents the document already has, which keeps its hash
+                        String name = entry.path.get(folders);
+                        TreeDocument existing = parent.childByName(name);
+                        String previousHash = existing == null ? null : existing.getContentHash();
+                        TreeDocument document;
+                        try {
+                            document = documentManager.storeDocument(parent.getId(), name, entry.data);
+                        } catch (ParseException e) {
+                            throw new RuntimeException(e);
+                        }
+                        if (previousHash != null && previousHash.equals(document.getContentHash())) {
+                            skipped++;
+                        } else {
+                            changedIds.add(document.getId());
+                            stored++;
+                        }
+                    }
+                    return new Imported(stored, skipped);
                 }
-            } else {
-                parent = findParent(targetFolder, entry.path);
+            });
+        } catch (RuntimeException e) {
+            documentManager.reloadDocuments(changedIds);
+            throw e;
+        }
+    }
+
+    /**
+     * The files already in the folder that the window stores over, locked before storing any of them
+     */
+    private List<TreeDocument> existingFiles(TreeDocument targetFolder, List<DocumentEntry> window) {
+        List<TreeDocument> files = new ArrayList<TreeDocument>();
+        for (DocumentEntry entry : window) {
+            TreeDocument document = entry.data == null ? null : documentManager.documentById(targetFolder.getId());
+            for (int i = 0; document != null && i < entry.path.size(); i++) {
+                document = document.childByName(entry.path.get(i));
+            }
+            if (document != null && !document.isFolder()) {
+                files.add(document);
             }
-            if (parent == null) {
-                System.out.println("parent = " + null);
-            } else {
-                System.out.println("parent.getPath() = " + parent.getPath());
+        }
+        return files;
+    }
+
+    private TreeDocument childFolder(TreeDocument parent, String name, Set<Long> changedIds) {
+        TreeDocument folder = parent.childByName(name);
+        if (folder == null) {
+            folder = documentManager.createFolder(parent.getId(), name);
+            changedIds.add(folder.getId());
+        } else if (!folder.isFolder()) {
+            throw new RuntimeException(folder.getPath() + " is not a folder");
+        }
+        return folder;
+    }
+
+    /**
+     * The folder names and the file name of the entry, without the empty and current folder parts
+     */
+    private static List<String> entryPath(String entryName) {
+        List<String> path = new ArrayList<String>();
+        for (String name : entryName.replace('\\', '/').split("/")) {
+            if (name.equals("..")) {
+                throw new RuntimeException("The archive refers outside of the folder: " + entryName);
             }
-            System.out.println("entry.path = " + entry.path);
-            if (parent == null) {
-                throw new NullPointerException("Failed to find the parent folder for " + entry.name);
+            if (!name.isEmpty() && !name.equals(".")) {
+                path.add(name);
             }
+        }
+        return path;
+    }
+
+    /**
+     * Writes the document and everything under it to the stream as they are read from the database. The contents of
+     * the next few files are read ahead on the prefetch threads, at most prefetchEntries files or prefetchBytes bytes
+     * at a time, so that reading the database and writing the response overlap. Files larger than streamBytes are
+     * not held in memory but streamed straight to the archive, while the smaller ones after them are read ahead. Which
+     * files are read ahead is decided once, as a file saved meanwhile may change its size.
+     */
+    public void writeArchive(TreeDocument document, OutputStream outputStream) throws IOException {
+        String rootPath = document.isRoot() ? "/" : document.getParent().getPath();
+        List<TreeDocument> documents = new ArrayList<TreeDocument>();
+        collectDocuments(document, documents);
+        List<TreeDocument> files = new ArrayList<TreeDocument>();
+        Set<TreeDocument> prefetched = Collections.newSetFromMap(new IdentityHashMap<TreeDocument, Boolean>());
+        for (TreeDocument file : documents) {
+            if (!file.isFolder() && !isStreamed(file)) {
+                files.add(file);
+                prefetched.add(file);
+            }
+        }
 
-            if (entry.folder) {
-                if (parent.childByName(entry.name) == null) {
-                    documentManager.createFolder(parent.getId(), entry.name);
+        Prefetcher prefetcher = new Prefetcher(files);
+        ZipOutputStream out = new ZipOutputStream(outputStream);
+        try {
+            for (TreeDocument entry : documents) {
+                String relativePath = entry.getPath().substring(rootPath.length() - 1);
+                if (entry.isFolder()) {
+                    // Create an empty zip entry for directories except root
+                    if (!entry.isRoot()) {
+                        out.putNextEntry(new ZipEntry(relativePath));
+                        out.closeEntry();
+                    }
+                } else if (prefetched.contains(entry)) {
+                    writeEntry(out, relativePath, entry.getMimeType(), prefetcher.next());
+                } else {
+                    streamEntry(out, relativePath, entry);
                 }
-            } else {
-                documentManager.storeDocument(parent.getId(), entry.name, entry.data);
             }
+            out.finish();
+        } finally {
+            prefetcher.cancel();
         }
     }
 
-    private TreeDocument findParent(TreeDocument targetFolder, String filePath) {
-        if (targetFolder.isRoot()) {
-            return documentManager.documentFromPath(filePath);
-        } else {
-            String rootPath = targetFolder.getPath().substring(1);
-            return documentManager.documentFromPath(rootPath + filePath);
+    /**
+     * Folders before the documents in them, in the order they're listed in the admin
+     */
+    private static void collectDocuments(TreeDocument document, List<TreeDocument> documents) {
+        documents.add(document);
+        for (TreeDocument child : document.getChildren()) {
+            collectDocuments(child, documents);
         }
     }
 
-    public byte[] documentAsArchive(TreeDocument document) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        ZipOutputStream out = new ZipOutputStream(byteArrayOutputStream);
-        String rootPath;
-        if (document.isRoot()) {
-            rootPath = "/";
-        } else {
-            rootPath = document.getParent().getPath();
-        }
-        archiveDocument(out, document, rootPath);
-        out.close();
-        return byteArrayOutputStream.toByteArray();
+    /**
+     * Already compressed media is stored as such, deflating it again would only spend time without saving space
+     */
+    private static void writeEntry(ZipOutputStream out, String name, String mimeType, byte[] bytes) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (isCompressed(mimeType)) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
     }
 
-    private void archiveDocument(ZipOutputStream out, TreeDocument document, String rootPath) throws IOException {
-        String fullPath = document.getPath();
-        String relativePath = fullPath.substring(rootPath.length()-1);
+    private boolean isStreamed(TreeDocument file) {
+        return file.getSize() > streamBytes;
+    }
 
-        if (document.isFolder()) {
-            // Create an empty zip entry for directories except root
-            if (!document.isRoot()) {
-                out.putNextEntry(new ZipEntry(relativePath));
-                out.closeEntry();
-            }
-            Collection<TreeDocument> children = document.getChildren();
-            for (TreeDocument child : children) {
-                archiveDocument(out, child, rootPath);
-            }
-        } else {
-            out.putNextEntry(new ZipEntry(relativePath));
-            byte[] bytes = readOnlyDataDao.loadData(document.getId(), 0);
-            out.write(bytes);
-            out.closeEntry();
+    /**
+     * The size and the checksum of a stored entry must be known before writing it, so already compressed media is
+     * deflated without compression instead, which adds only a few bytes per block
+     */
+    private void streamEntry(ZipOutputStream out, String name, TreeDocument file) throws IOException {
+        boolean compressed = isCompressed(file.getMimeType());
+        if (compressed) {
+            out.setLevel(Deflater.NO_COMPRESSION);
+        }
+        out.putNextEntry(new ZipEntry(name));
+        readOnlyDataDao.writeData(file.getId(), 0, out);
+        out.closeEntry();
+        if (compressed) {
+            out.setLevel(Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+    static boolean isCompressed(String mimeType) {
+        if (mimeType == null) {
+            return false;
         }
+        return COMPRESSED_MIME_TYPES.contains(mimeType) || mimeType.startsWith("video/");
+    }
+
+    @PostConstruct
+    public void initialize() {
+        prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "archive-prefetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        prefetchExecutor.shutdownNow();
     }
 
     /**
-     * Sometimes an archive may first contain the file definition and the folder only afterwards so we'll need to
-     * sort them.
+     * Reads the contents of the files in order, keeping the reads of the next ones running in the background
      */
-    private static class DocumentEntry implements Comparable<DocumentEntry> {
-        private boolean folder;
-        private String path;
-        private String name;
-        private byte[] data;
-
-        private DocumentEntry(boolean folder, String path, String name, byte[] data) {
-            this.folder = folder;
-            this.path = path;
-            this.name = name;
-            this.data = data;
+    private class Prefetcher {
+        private final PeekingIterator<TreeDocument> files;
+        private final LinkedList<Future<byte[]>> reads = new LinkedList<Future<byte[]>>();
+        private final LinkedList<Long> sizes = new LinkedList<Long>();
+        private long bytes;
+
+        private Prefetcher(List<TreeDocument> files) {
+            this.files = Iterators.peekingIterator(files.iterator());
         }
 
-        @Override
-        public int compareTo(DocumentEntry other) {
-            if (folder) {
-                if (!other.folder) {
-                    return -1;
-                }
-            } else if (other.folder) {
-                return 1;
+        public byte[] next() throws IOException {
+            prefetch();
+            Future<byte[]> read = reads.removeFirst();
+            bytes -= sizes.removeFirst();
+            prefetch();
+            try {
+                byte[] data = read.get();
+                return data == null ? new byte[0] : data;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading the contents", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to read the contents", e.getCause());
             }
+        }
 
-            int pathDiff = pathLength() - other.pathLength();
-            if (pathDiff != 0) {
-                return pathDiff;
+        /**
+         * Starts reading the next files unless too much has been read ahead already, but always at least one file
+         */
+        private void prefetch() {
+            while (files.hasNext() && reads.size() < prefetchEntries
+                    && (reads.isEmpty() || bytes + files.peek().getSize() <= prefetchBytes)) {
+                final TreeDocument file = files.next();
+                reads.add(prefetchExecutor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return readOnlyDataDao.loadData(file.getId(), 0);
+                    }
+                }));
+                sizes.add(file.getSize());
+                bytes += file.getSize();
             }
-
-            return name.compareTo(other.name);
         }
 
-        private int pathLength() {
-            if (path == null) {
-                return 0;
+        public void cancel() {
+            for (Future<byte[]> read : reads) {
+                read.cancel(true);
             }
-            return path.split("/").length;
+        }
+    }
+
+    private static class DocumentEntry {
+        private final List<String> path;
+        private final byte[] data;
+
+        /**
+         * @param data null for a folder
+         */
+        private DocumentEntry(List<String> path, byte[] data) {
+            this.path = path;
+            this.data = data;
         }
     }
 }
@@ -0,0 +1,178 @@
+package fi.essentia.somacms.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes a byte array as the differences from another one, in the spirit of the git pack deltas. The base is indexed
+ * in fixed size blocks and the target is scanned with a rolling hash, so that every run of at least a block of bytes
+ * found in the base becomes a copy instruction and everything else is inserted as such.
+ *
+ * The format is the length of the base and the target followed by the instructions, all numbers as variable length
+ * integers. A copy is a zero byte followed by the offset and the length in the base, an insert is a one byte followed
+ * by the length and the bytes.
+ */
+public class BinaryDelta {
+    private static final int BLOCK_SIZE = 16;
+    private static final long HASH_BASE = 257;
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    /** HASH_BASE to the power of BLOCK_SIZE - 1, for removing the first byte from the rolling hash */
+    private static final long HASH_REMOVE;
+    static {
+        long power = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            power *= HASH_BASE;
+        }
+        HASH_REMOVE = power;
+    }
+
+    public static byte[] encode(byte[] base, byte[] target) {
+        Map<Long, Integer> blocks = new HashMap<Long, Integer>(base.length / BLOCK_SIZE * 2);
+        for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+            Long hash = hash(base, offset);
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, offset);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 8 + 16);
+        writeNumber(out, base.length);
+        writeNumber(out, target.length);
+
+        int literalStart = 0;
+        int position = 0;
+        long hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (position + BLOCK_SIZE <= target.length) {
+            Integer baseOffset = blocks.get(hash);
+            if (baseOffset != null && matches(base, baseOffset, target, position)) {
+                // Extend the match in both directions, backwards only over bytes not yet encoded
+                int start = baseOffset;
+                int targetStart = position;
+                while (start > 0 && targetStart > literalStart && base[start - 1] == target[targetStart - 1]) {
+                    start--;
+                    targetStart--;
+                }
+                int end = baseOffset + BLOCK_SIZE;
+                int targetEnd = position + BLOCK_SIZE;
+                while (end < base.length && targetEnd < target.length && base[end] == target[targetEnd]) {
+                    end++;
+                    targetEnd++;
+                }
+
+                writeInsert(out, target, literalStart, targetStart);
+                out.write(COPY);
+                writeNumber(out, start);
+                writeNumber(out, end - start);
+
+                position = targetEnd;
+                literalStart = targetEnd;
+                if (position + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, position);
+                }
+            } else {
+                if (position + BLOCK_SIZE < target.length) {
+                    hash = (hash - (target[position] & 0xff) * HASH_REMOVE) * HASH_BASE + (target[position + BLOCK_SIZE] & 0xff);
+                }
+                position++;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Throws an IllegalArgumentException if the delta wasn't made against the given base or is corrupt
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        if (readNumber(delta, position) != base.length) {
+            throw new IllegalArgumentException("The delta was made against a different base");
+        }
+        int targetLength = readNumber(delta, position);
+        byte[] target = new byte[targetLength];
+
+        int targetPosition = 0;
+        while (position[0] < delta.length) {
+            int instruction = delta[position[0]++];
+            if (instruction == COPY) {
+                int offset = readNumber(delta, position);
+                int length = readNumber(delta, position);
+                checkRange(offset, length, base.length);
+                checkRange(targetPosition, length, targetLength);
+                System.arraycopy(base, offset, target, targetPosition, length);
+                targetPosition += length;
+            } else if (instruction == INSERT) {
+                int length = readNumber(delta, position);
+                checkRange(position[0], length, delta.length);
+                checkRange(targetPosition, length, targetLength);
+                System.arraycopy(delta, position[0], target, targetPosition, length);
+                position[0] += length;
+                targetPosition += length;
+            } else {
+                throw new IllegalArgumentException("Unknown instruction " + instruction);
+            }
+        }
+
+        if (targetPosition != targetLength) {
+            throw new IllegalArgumentException("The delta is truncated");
+        }
+        return target;
+    }
+
+    private static long hash(byte[] bytes, int offset) {
+        long hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * HASH_BASE + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int start, int end) {
+        if (end > start) {
+            out.write(INSERT);
+            writeNumber(out, end - start);
+            out.write(target, start, end - start);
+        }
+    }
+
+    private static void checkRange(int offset, int length, int size) {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IllegalArgumentException("The delta is corrupt");
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, int number) {
+        while ((number & ~0x7f) != 0) {
+            out.write((number & 0x7f) | 0x80);
+            number >>>= 7;
+        }
+        out.write(number);
+    }
+
+    private static int readNumber(byte[] bytes, int[] position) {
+        int number = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new IllegalArgumentException("The delta is truncated");
+            }
+            int b = bytes[position[0]++];
+            number |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return number;
+            }
+        }
+        throw new IllegalArgumentException("The delta is corrupt");
+    }
+}
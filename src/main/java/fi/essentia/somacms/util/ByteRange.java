@@ -0,0 +1,95 @@
+package fi.essentia.somacms.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One range of bytes requested with the HTTP Range header. Both ends are inclusive, like in the header itself.
+ */
+public class ByteRange {
+    /** Requests with more ranges than this are answered with the whole document */
+    private static final int MAX_RANGES = 16;
+    private static final String UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Value of the Content-Range header for this range
+     */
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parses the value of a Range header against a document of the given size.
+     *
+     * @return null if the header is malformed and should be ignored, an empty list if none of the ranges can be
+     * satisfied and otherwise the satisfiable ranges in the order they were requested
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith(UNIT)) {
+            return null;
+        }
+
+        String[] specs = header.substring(UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range, i.e. the last N bytes
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffixLength);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < size) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+        return ranges.isEmpty() ? Collections.<ByteRange>emptyList() : ranges;
+    }
+}
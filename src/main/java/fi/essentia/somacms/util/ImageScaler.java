@@ -0,0 +1,167 @@
+package fi.essentia.somacms.util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Scales images down with the JDK's ImageIO. Images with transparency are written as PNG and the rest as JPEG.
+ */
+public class ImageScaler {
+    private static final float JPEG_QUALITY = 0.85f;
+
+    /**
+     * Null if ImageIO can't read the image. The dimensions are read first, and an image of more than maxPixels pixels
+     * is decoded skipping rows and columns evenly, so that a small file claiming huge dimensions can't take all the
+     * memory. The result has at most maxPixels pixels.
+     */
+    public static BufferedImage read(byte[] bytes, long maxPixels) {
+        try {
+            ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes));
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    ImageReadParam parameters = reader.getDefaultReadParam();
+                    int subsampling = subsampling(reader.getWidth(0), reader.getHeight(0), maxPixels);
+                    if (subsampling > 1) {
+                        parameters.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    return reader.read(0, parameters);
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // Some of the readers fail with runtime exceptions on broken files
+            return null;
+        }
+    }
+
+    /**
+     * The smallest step of rows and columns that brings the image down to at most maxPixels pixels
+     */
+    static int subsampling(long width, long height, long maxPixels) {
+        int step = Math.max(1, (int) Math.sqrt((double) width * height / maxPixels));
+        while (((width + step - 1) / step) * ((height + step - 1) / step) > maxPixels) {
+            step++;
+        }
+        return step;
+    }
+
+    /**
+     * Fits the image within the given width and height keeping its aspect ratio, never scales up. Halves the size
+     * one step at a time with bilinear interpolation, which is both fast and smooth enough for large reductions.
+     */
+    public static BufferedImage scale(BufferedImage image, int maxWidth, int maxHeight) {
+        double ratio = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        int type = hasAlpha(image) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage scaled = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage step = new BufferedImage(width, height, type);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(scaled, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            scaled = step;
+        } while (width != targetWidth || height != targetHeight);
+        return scaled;
+    }
+
+    /**
+     * Scales the image to cover the given width and height and cuts off what's left over evenly from both sides. If
+     * the image is smaller, it's only cut to the same aspect ratio.
+     */
+    public static BufferedImage crop(BufferedImage image, int width, int height) {
+        double ratio = Math.max((double) width / image.getWidth(), (double) height / image.getHeight());
+        double aspect = (double) width / height;
+        int cropWidth = image.getWidth();
+        int cropHeight = image.getHeight();
+        if (ratio > 1) {
+            // Never scaled up, so the result gets smaller instead
+            if ((double) cropWidth / cropHeight > aspect) {
+                cropWidth = Math.max(1, (int) Math.round(cropHeight * aspect));
+            } else {
+                cropHeight = Math.max(1, (int) Math.round(cropWidth / aspect));
+            }
+            width = cropWidth;
+            height = cropHeight;
+        } else {
+            cropWidth = Math.min(image.getWidth(), Math.max(1, (int) Math.round(width / ratio)));
+            cropHeight = Math.min(image.getHeight(), Math.max(1, (int) Math.round(height / ratio)));
+        }
+        BufferedImage cropped = image.getSubimage((image.getWidth() - cropWidth) / 2, (image.getHeight() - cropHeight) / 2, cropWidth, cropHeight);
+        return scale(cropped, width, height);
+    }
+
+    public static String mimeType(BufferedImage image) {
+        return hasAlpha(image) ? "image/png" : "image/jpeg";
+    }
+
+    public static byte[] write(BufferedImage image) {
+        return write(image, JPEG_QUALITY);
+    }
+
+    /**
+     * The quality between 0 and 1 only applies to JPEG
+     */
+    public static byte[] write(BufferedImage image, float quality) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            if (hasAlpha(image)) {
+                ImageIO.write(image, "png", bytes);
+            } else {
+                ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+                ImageWriteParam parameters = writer.getDefaultWriteParam();
+                parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                parameters.setCompressionQuality(quality);
+                ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+                try {
+                    writer.setOutput(out);
+                    writer.write(null, new IIOImage(image, null, null), parameters);
+                } finally {
+                    writer.dispose();
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean hasAlpha(BufferedImage image) {
+        return image.getColorModel().hasAlpha();
+    }
+}
@@ -0,0 +1,74 @@
+package fi.essentia.somacms.util;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * How an image is resized for a public request, e.g. ?w=640, ?w=200&h=200&crop=true or ?w=1024&q=70. Without a
+ * crop the image is fitted within the given width and height, a missing one meaning no limit. With a crop it fills
+ * them both and the rest is cut off evenly from both sides. The quality only applies to JPEG.
+ */
+public class Rendition {
+    public static final int DEFAULT_QUALITY = 85;
+
+    private final int width;
+    private final int height;
+    private final boolean crop;
+    private final int quality;
+
+    private Rendition(int width, int height, boolean crop, int quality) {
+        this.width = width;
+        this.height = height;
+        this.crop = crop;
+        this.quality = quality;
+    }
+
+    /**
+     * Null if no size was requested. Throws an IllegalArgumentException if the parameters aren't valid, sizes over
+     * maxSize included, so that arbitrary parameters can't fill the cache with huge images.
+     */
+    public static Rendition parse(String width, String height, String crop, String quality, int maxSize) {
+        if (width == null && height == null) {
+            return null;
+        }
+        int w = parse("w", width, 0, maxSize);
+        int h = parse("h", height, 0, maxSize);
+        boolean cropped = "true".equals(crop) || "1".equals(crop);
+        if (cropped && (w == 0 || h == 0)) {
+            throw new IllegalArgumentException("Cropping needs both w and h");
+        }
+        return new Rendition(w, h, cropped, parse("q", quality, DEFAULT_QUALITY, 100));
+    }
+
+    private static int parse(String name, String value, int defaultValue, int max) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 1 && number <= max) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(name + " must be between 1 and " + max);
+    }
+
+    public BufferedImage apply(BufferedImage image) {
+        if (crop) {
+            return ImageScaler.crop(image, width, height);
+        }
+        return ImageScaler.scale(image, width == 0 ? Integer.MAX_VALUE : width, height == 0 ? Integer.MAX_VALUE : height);
+    }
+
+    public float getQuality() {
+        return quality / 100f;
+    }
+
+    /**
+     * Tells the renditions apart in the cache and in the entity tags
+     */
+    public String key() {
+        return "w" + width + "h" + height + (crop ? "c" : "") + "q" + quality;
+    }
+}
@@ -0,0 +1,204 @@
+package fi.essentia.somacms.util;
+
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.models.Document;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the resized copies of the images requested with the Rendition parameters and keeps them as files under the
+ * configured directory, at most maxBytes of them with the least recently used ones removed first. A rendition is
+ * made once per document, contents and parameters: the requests for one being made wait for it, and at most
+ * maxConcurrent of them are made at a time so that a burst of new sizes can't take all the CPU.
+ */
+@Component
+public class RenditionCache {
+    private static final Logger logger = LoggerFactory.getLogger(RenditionCache.class);
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    @Autowired ReadOnlyDataDao readOnlyDataDao;
+    @Value("${rendition.directory:}") String directory = "";
+    @Value("${rendition.maxBytes:268435456}") long maxBytes = 268435456;
+    @Value("${rendition.maxConcurrent:2}") int maxConcurrent = 2;
+    @Value("${rendition.waitMillis:5000}") long waitMillis = 5000;
+    @Value("${image.maxPixels:33554432}") long maxPixels = 33554432;
+
+    private File cacheDirectory;
+    private Semaphore permits;
+
+    /** In the order of use, the least recently used first */
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<String, File>(16, 0.75f, true);
+    private long bytes;
+    private final ConcurrentMap<String, FutureTask<File>> pending = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    /** The images that ImageIO can't read, by document id and contents */
+    private final Set<String> unreadable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Picks up the renditions made before a restart, the oldest ones being the first to go. Without a configured
+     * directory the renditions are kept under the temporary directory.
+     */
+    @PostConstruct
+    public void initialize() {
+        permits = new Semaphore(maxConcurrent, true);
+        cacheDirectory = directory.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), "somacms-renditions") : new File(directory);
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IllegalStateException("Failed to create the rendition directory " + cacheDirectory);
+        }
+        File[] existing = cacheDirectory.listFiles();
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return Long.valueOf(first.lastModified()).compareTo(second.lastModified());
+            }
+        });
+        synchronized (files) {
+            for (File file : existing) {
+                if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                    FileUtils.deleteQuietly(file);
+                } else {
+                    files.put(FilenameUtils.getBaseName(file.getName()), file);
+                    bytes += file.length();
+                }
+            }
+            evict();
+        }
+        logger.info("Keeping the image renditions under " + cacheDirectory.getAbsolutePath());
+    }
+
+    /**
+     * The file with the image resized as requested, or null if ImageIO can't read the image. Throws a
+     * RenditionBusyException if it needs to be made but waiting for a free slot took longer than waitMillis.
+     */
+    public File rendition(final Document document, final Rendition rendition) throws IOException {
+        final String image = document.getId() + "-" + document.getContentHash();
+        if (unreadable.contains(image)) {
+            return null;
+        }
+        final String key = image + "-" + rendition.key();
+        synchronized (files) {
+            File file = files.get(key);
+            if (file != null) {
+                return file;
+            }
+        }
+
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                File file = render(key, document, rendition);
+                if (file == null) {
+                    unreadable.add(image);
+                }
+                return file;
+            }
+        });
+        FutureTask<File> running = pending.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                pending.remove(key);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RenditionBusyException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private File render(String key, Document document, Rendition rendition) throws IOException, InterruptedException {
+        if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+            throw new RenditionBusyException();
+        }
+        try {
+            BufferedImage image = ImageScaler.read(readOnlyDataDao.loadData(document.getId(), 0), maxPixels);
+            if (image == null) {
+                return null;
+            }
+            BufferedImage scaled = rendition.apply(image);
+            byte[] data = ImageScaler.write(scaled, rendition.getQuality());
+            String extension = ImageScaler.mimeType(scaled).equals("image/png") ? ".png" : ".jpg";
+
+            // Written under another name first, so that a half written file is never served
+            File temporary = new File(cacheDirectory, key + TEMPORARY_SUFFIX);
+            File file = new File(cacheDirectory, key + extension);
+            FileUtils.writeByteArrayToFile(temporary, data);
+            java.nio.file.Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (files) {
+                files.put(key, file);
+                bytes += data.length;
+                evict();
+            }
+            return file;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the rest fit in maxBytes, but keeps the latest one which is about
+     * to be sent. A request still sending a removed file keeps reading it, as the file system frees it only when it's
+     * closed.
+     */
+    private void evict() {
+        Iterator<File> iterator = files.values().iterator();
+        while (bytes > maxBytes && files.size() > 1) {
+            File file = iterator.next();
+            bytes -= file.length();
+            FileUtils.deleteQuietly(file);
+            iterator.remove();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (files) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Thrown when too many renditions are being made at the same time. Leads to a 503 status.
+     */
+    public static class RenditionBusyException extends RuntimeException {
+        public RenditionBusyException() {
+            super("Too many images are being resized at the moment");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package fi.essentia.somacms.util;
+
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.dao.ThumbnailDao;
+import fi.essentia.somacms.models.Document;
+import fi.essentia.somacms.models.Thumbnail;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Makes the thumbnails shown in the admin folder view, either when an image is uploaded or when its thumbnail is
+ * first requested. The thumbnails are stored with the hash of the contents they were made from, so a new version of
+ * the image gets a new thumbnail.
+ */
+@Component
+public class ThumbnailGenerator {
+    @Autowired ThumbnailDao thumbnailDao;
+    @Autowired ReadOnlyDataDao readOnlyDataDao;
+    @Value("${thumbnail.size:64}") int size = 64;
+    @Value("${image.maxPixels:33554432}") long maxPixels = 33554432;
+
+    /**
+     * The stored thumbnail of the current contents, made now if there's none yet
+     */
+    public Thumbnail thumbnail(Document document) {
+        Thumbnail thumbnail = thumbnailDao.findThumbnail(document.getId(), document.getContentHash());
+        if (thumbnail == null) {
+            thumbnail = generate(document, readOnlyDataDao.loadData(document.getId(), 0));
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Makes and stores the thumbnail from the given contents of the document
+     */
+    public Thumbnail generate(Document document, byte[] bytes) {
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setDocument_id(document.getId());
+        thumbnail.setContent_hash(document.getContentHash());
+        BufferedImage image = ImageScaler.read(bytes, maxPixels);
+        if (image != null) {
+            BufferedImage scaled = ImageScaler.scale(image, size, size);
+            thumbnail.setMime_type(ImageScaler.mimeType(scaled));
+            thumbnail.setData(ImageScaler.write(scaled));
+        }
+        thumbnailDao.storeThumbnail(thumbnail);
+        return thumbnail;
+    }
+}
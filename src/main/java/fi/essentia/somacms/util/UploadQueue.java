@@ -0,0 +1,270 @@
+package fi.essentia.somacms.util;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import fi.essentia.somacms.json.Imported;
+import fi.essentia.somacms.json.StageLatency;
+import fi.essentia.somacms.json.UploadStatistics;
+import fi.essentia.somacms.json.UploadStatus;
+import fi.essentia.somacms.tree.DocumentManager;
+import fi.essentia.somacms.tree.TreeDocument;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes the uploaded files in the background, so that the request only has to spool the upload to disk. The
+ * files are stored by a small pool of workers, and the clients poll the status of their job by its id. Uploads are
+ * rejected once queueSize of them are waiting.
+ */
+@Component
+public class UploadQueue {
+    private static final Logger logger = LoggerFactory.getLogger(UploadQueue.class);
+    public static final String STAGE_SPOOL = "spool";
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_HASH = "hash";
+    public static final String STAGE_READ = "read";
+    public static final String STAGE_STORE = "store";
+    public static final String STAGE_IMPORT = "import";
+    public static final String STAGE_THUMBNAIL = "thumbnail";
+
+    @Autowired DocumentManager documentManager;
+    @Autowired ArchiveHelper archiveHelper;
+    @Autowired ThumbnailGenerator thumbnailGenerator;
+    @Value("${upload.threads:2}") int threads = 2;
+    @Value("${upload.queueSize:50}") int queueSize = 50;
+    @Value("${upload.spoolDirectory:}") String spoolDirectory = "";
+    @Value("${upload.retainMillis:600000}") long retainMillis = 600000;
+
+    private ThreadPoolExecutor executor;
+    private final AtomicLong lastJobId = new AtomicLong();
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<Long, Job>();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+    public UploadQueue() {
+        for (String stage : new String[] {STAGE_SPOOL, STAGE_QUEUE, STAGE_HASH, STAGE_READ, STAGE_STORE, STAGE_IMPORT, STAGE_THUMBNAIL}) {
+            stages.put(stage, new Stage());
+        }
+    }
+
+    @PostConstruct
+    public void initialize() {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Spools the upload to a temporary file and queues it. A ZIP archive uploaded to a folder is extracted into it,
+     * any other file uploaded to a folder is stored in it, and a file uploaded to a document replaces its contents.
+     */
+    public UploadStatus submit(TreeDocument target, MultipartFile file) throws IOException {
+        pruneJobs();
+        boolean archive = target.isFolder() && "application/zip".equals(file.getContentType());
+        long start = System.currentTimeMillis();
+        File spooled = File.createTempFile("upload", ".tmp", spoolDirectory.isEmpty() ? null : new File(spoolDirectory));
+        Job job = new Job(lastJobId.incrementAndGet(), target.isFolder() ? target.getId() : target.getParentId(), file.getOriginalFilename(), archive, spooled);
+        try {
+            file.transferTo(spooled);
+            stages.get(STAGE_SPOOL).record(System.currentTimeMillis() - start);
+            job.queued = System.currentTimeMillis();
+            jobs.put(job.id, job);
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            FileUtils.deleteQuietly(spooled);
+            throw new RuntimeException("There are too many uploads waiting, please try again later");
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(spooled);
+            throw e;
+        }
+        return job.status();
+    }
+
+    /**
+     * Null if there's no such job, or it finished more than retainMillis ago
+     */
+    public UploadStatus status(long jobId) {
+        pruneJobs();
+        Job job = jobs.get(jobId);
+        return job == null ? null : job.status();
+    }
+
+    public UploadStatistics statistics() {
+        Map<String, StageLatency> latencies = new LinkedHashMap<String, StageLatency>();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().latency());
+        }
+        return new UploadStatistics(executor.getQueue().size(), executor.getActiveCount(), completed.get(), failed.get(), latencies);
+    }
+
+    private void pruneJobs() {
+        long oldest = System.currentTimeMillis() - retainMillis;
+        for (Iterator<Job> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            Job job = iterator.next();
+            if (job.finished != 0 && job.finished < oldest) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private class Job implements Runnable {
+        private final long id;
+        private final long parentId;
+        private final String fileName;
+        private final boolean archive;
+        private final File file;
+        private volatile long queued;
+        private volatile long finished;
+        private volatile String state = UploadStatus.QUEUED;
+        private volatile Long documentId;
+        private volatile int stored;
+        private volatile int skipped;
+        private volatile String error;
+
+        private Job(long id, long parentId, String fileName, boolean archive, File file) {
+            this.id = id;
+            this.parentId = parentId;
+            this.fileName = fileName;
+            this.archive = archive;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            stages.get(STAGE_QUEUE).record(start - queued);
+            state = UploadStatus.PROCESSING;
+            try {
+                if (archive) {
+                    importArchive();
+                } else {
+                    storeFile();
+                }
+                completed.incrementAndGet();
+                state = UploadStatus.DONE;
+            } catch (Exception e) {
+                logger.error("Upload of " + fileName + " failed", e);
+                failed.incrementAndGet();
+                error = e.getMessage();
+                state = UploadStatus.FAILED;
+            } finally {
+                FileUtils.deleteQuietly(file);
+                finished = System.currentTimeMillis();
+            }
+        }
+
+        private void importArchive() throws IOException {
+            long start = System.currentTimeMillis();
+            TreeDocument folder = documentManager.documentById(parentId);
+            if (folder == null) {
+                throw new RuntimeException("The folder was deleted");
+            }
+            Imported imported = archiveHelper.storeDocuments(folder, new BufferedInputStream(new FileInputStream(file)));
+            stored = imported.getStored();
+            skipped = imported.getSkipped();
+            stages.get(STAGE_IMPORT).record(System.currentTimeMillis() - start);
+        }
+
+        /**
+         * The contents are hashed straight from the spooled file, so an unchanged file is never read into memory. A
+         * changed one still is, as the DocumentManager stores whole byte arrays, but only by the worker storing it.
+         * Tika detection, storing and indexing happen in the DocumentManager under the document lock, so they're
+         * timed as a single stage. The thumbnail of an image is made while its contents are at hand.
+         */
+        private void storeFile() throws Exception {
+            long start = System.currentTimeMillis();
+            String contentHash = Files.hash(file, Hashing.sha1()).toString();
+            long hashed = System.currentTimeMillis();
+            stages.get(STAGE_HASH).record(hashed - start);
+            TreeDocument folder = documentManager.documentById(parentId);
+            if (folder == null) {
+                throw new RuntimeException("The folder was deleted");
+            }
+            TreeDocument existing = folder.childByName(fileName);
+            if (existing != null && contentHash.equals(existing.getContentHash())) {
+                documentId = existing.getId();
+                skipped = 1;
+                return;
+            }
+
+            byte[] bytes = FileUtils.readFileToByteArray(file);
+            long read = System.currentTimeMillis();
+            stages.get(STAGE_READ).record(read - hashed);
+            TreeDocument document = documentManager.storeDocument(parentId, fileName, bytes, contentHash);
+            documentId = document.getId();
+            stored = 1;
+            long storedTime = System.currentTimeMillis();
+            stages.get(STAGE_STORE).record(storedTime - read);
+
+            if (document.isImage() && document.getContentHash() != null) {
+                try {
+                    thumbnailGenerator.generate(document, bytes);
+                    stages.get(STAGE_THUMBNAIL).record(System.currentTimeMillis() - storedTime);
+                } catch (RuntimeException e) {
+                    // It's made again when it's first requested
+                    logger.warn("Thumbnail of " + fileName + " failed", e);
+                }
+            }
+        }
+
+        public UploadStatus status() {
+            return new UploadStatus(id, fileName, archive, state, documentId, stored, skipped, error);
+        }
+    }
+
+    private static class Stage {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        public void record(long millis) {
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max;
+            while ((max = maxMillis.get()) < millis && !maxMillis.compareAndSet(max, millis)) {
+                // Retry until the maximum is at least this long
+            }
+        }
+
+        public StageLatency latency() {
+            return new StageLatency(count.get(), totalMillis.get(), maxMillis.get());
+        }
+    }
+}
@@ -0,0 +1,2 @@
+ALTER TABLE `document_version`
+ADD `delta_base` int(2);
@@ -0,0 +1,8 @@
+CREATE TABLE `document_thumbnail` (
+  `document_id` int(11) NOT NULL,
+  `content_hash` char(40) NOT NULL,
+  `mime_type` varchar(100),
+  `data` mediumblob,
+  PRIMARY KEY (`document_id`),
+  FOREIGN KEY (`document_id`) REFERENCES `document` (`id`) ON DELETE CASCADE
+);
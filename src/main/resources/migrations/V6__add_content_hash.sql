@@ -0,0 +1,5 @@
+ALTER TABLE `document`
+ADD `content_hash` char(40) AFTER `mime_type`;
+
+UPDATE `document` JOIN `document_data` ON `document_data`.`document_id` = `document`.`id` AND `document_data`.`document_version` = 0
+SET `document`.`content_hash` = SHA1(`document_data`.`data`);
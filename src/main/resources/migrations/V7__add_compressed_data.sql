@@ -0,0 +1,5 @@
+ALTER TABLE `document_data`
+ADD `gzip_data` mediumblob;
+
+ALTER TABLE `document`
+ADD `compressed_size` int(11) AFTER `size`;
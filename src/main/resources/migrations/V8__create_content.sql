@@ -0,0 +1,22 @@
+CREATE TABLE `content` (
+  `hash` char(40) NOT NULL,
+  `data` mediumblob,
+  `gzip_data` mediumblob,
+  `ref_count` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`hash`)
+);
+
+ALTER TABLE `document_version`
+ADD `content_hash` char(40),
+ADD CONSTRAINT `FK_document_version_content`
+FOREIGN KEY (`content_hash`) REFERENCES `content` (`hash`);
+
+INSERT INTO `content` (`hash`, `data`, `gzip_data`, `ref_count`)
+SELECT SHA1(`data`), MAX(`data`), MAX(`gzip_data`), COUNT(*) FROM `document_data`
+WHERE `data` IS NOT NULL
+GROUP BY SHA1(`data`);
+
+UPDATE `document_version` JOIN `document_data` ON `document_data`.`document_id` = `document_version`.`document_id` AND `document_data`.`document_version` = `document_version`.`document_version`
+SET `document_version`.`content_hash` = SHA1(`document_data`.`data`);
+
+DROP TABLE `document_data`;
@@ -0,0 +1,7 @@
+CREATE TABLE `document_change` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `document_id` int(11) NOT NULL,
+  `changed` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`id`),
+  KEY `document_change_changed` (`changed`)
+);
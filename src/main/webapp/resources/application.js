@@ -46,10 +46,10 @@ function initializeUploader(document) {
                 $(".bar").width((loaded / total * 100)  + "%");
             },
             onComplete: function(id, fileName, responseJSON) {
-                progressBar.hide();
                 if (responseJSON.success) {
-                    location.reload();
+                    waitForUpload(responseJSON.jobId, fileName, progressBar);
                 } else {
+                    progressBar.hide();
                     bootbox.alert("Failed to upload <b>" + fileName + "</b>. " + responseJSON.explanation);
                 }
             }
@@ -60,6 +60,21 @@ function initializeUploader(document) {
     })
 }
 
+function waitForUpload(jobId, fileName, progressBar) {
+    $.getJSON(contextPath + "/admin/api/uploads/" + jobId, function(status) {
+        if (!status.success || status.state == "failed") {
+            progressBar.hide();
+            bootbox.alert("Failed to upload <b>" + fileName + "</b>. " + (status.success ? status.error : status.explanation));
+        } else if (status.state == "done") {
+            location.reload();
+        } else {
+            setTimeout(function() {
+                waitForUpload(jobId, fileName, progressBar);
+            }, 500);
+        }
+    });
+}
+
 function initializeSearch() {
     window.pathToId = {};
     $('#search').typeahead({
@@ -0,0 +1,102 @@
+package fi.essentia.somacms.dao;
+
+import com.google.common.hash.Hashing;
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ContentCacheTest {
+    private ContentCache contentCache;
+    private ReadOnlyDataDao mockDataDao;
+
+    @Before
+    public void setup() {
+        mockDataDao = mock(ReadOnlyDataDao.class);
+        when(mockDataDao.loadData(1, 0)).thenReturn(data(1));
+        when(mockDataDao.loadData(2, 0)).thenReturn(data(2));
+
+        contentCache = new ContentCache();
+        contentCache.dataDao = mockDataDao;
+        contentCache.maxBytes = 1600;
+        contentCache.initialize();
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        contentCache.loadData(document(1, data(1)));
+        contentCache.loadData(document(1, data(1)));
+        contentCache.loadData(document(2, data(2)));
+
+        verify(mockDataDao, times(1)).loadData(1, 0);
+        assertEquals(1, contentCache.stats().hitCount());
+        assertEquals(2, contentCache.stats().missCount());
+        assertEquals(200, contentCache.weight());
+    }
+
+    @Test
+    public void newContentsHaveNewEntry() {
+        contentCache.loadData(document(1, data(1)));
+        when(mockDataDao.loadData(1, 0)).thenReturn(data(3));
+        assertEquals(3, contentCache.loadData(document(1, data(3)))[0]);
+
+        verify(mockDataDao, times(2)).loadData(1, 0);
+        assertEquals(2, contentCache.size());
+    }
+
+    @Test
+    public void contentsStoredAgainAreNotCachedUnderOldHash() {
+        when(mockDataDao.loadData(1, 0)).thenReturn(data(3));
+        assertNull(contentCache.loadData(document(1, data(1))));
+        assertEquals(0, contentCache.size());
+
+        when(mockDataDao.loadData(1, 0)).thenReturn(null);
+        assertNull(contentCache.loadData(document(1, data(3))));
+        assertEquals(0, contentCache.size());
+    }
+
+    @Test
+    public void evictsByBytes() {
+        for (int i = 10; i < 30; i++) {
+            when(mockDataDao.loadData(i, 0)).thenReturn(data(i));
+            contentCache.loadData(document(i, data(i)));
+        }
+        assertTrue(contentCache.weight() <= 1600);
+        assertTrue(contentCache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    public void cacheable() {
+        DatabaseDocument document = document(1, data(1));
+        document.setSize(100);
+        assertTrue(contentCache.isCacheable(document));
+
+        document.setSize(101);
+        assertFalse(contentCache.isCacheable(document));
+
+        document.setSize(100);
+        document.setContentHash(null);
+        assertFalse(contentCache.isCacheable(document));
+    }
+
+    private static byte[] data(int value) {
+        byte[] data = new byte[100];
+        data[0] = (byte) value;
+        return data;
+    }
+
+    private static DatabaseDocument document(long id, byte[] data) {
+        DatabaseDocument document = new DatabaseDocument(id, "document-" + id + ".css", false);
+        document.setSize(data.length);
+        document.setContentHash(Hashing.sha1().hashBytes(data).toString());
+        return document;
+    }
+}
@@ -0,0 +1,202 @@
+package fi.essentia.somacms.dao;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertArrayEquals;
+
+public class FileDataDaoTest {
+    private static final byte[] DATA = "Hello, world!".getBytes();
+
+    private File directory;
+    private FileDataDao dataDao;
+
+    @Before
+    public void setup() {
+        directory = Files.createTempDir();
+        dataDao = new FileDataDao();
+        dataDao.setDirectory(directory);
+        dataDao.initialize();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Test
+    public void storeAndLoad() {
+        dataDao.insertData(1, 0, DATA);
+        assertArrayEquals(DATA, dataDao.loadData(1, 0));
+
+        dataDao.updateData(1, 0, new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, dataDao.loadData(1, 0));
+        assertNull(dataDao.loadCompressedData(1, 0));
+    }
+
+    @Test
+    public void writeRange() throws IOException {
+        dataDao.insertData(1, 0, DATA);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dataDao.writeData(1, 0, 7, 100, out);
+        assertArrayEquals("world!".getBytes(), out.toByteArray());
+
+        out = new ByteArrayOutputStream();
+        dataDao.writeData(1, 0, out);
+        assertArrayEquals(DATA, out.toByteArray());
+    }
+
+    @Test
+    public void copyKeepsPreviousData() {
+        dataDao.insertData(1, 0, DATA);
+        dataDao.copyData(1, 0, 1);
+        dataDao.updateData(1, 0, new byte[]{1, 2, 3});
+
+        assertArrayEquals(DATA, dataDao.loadData(1, 1));
+        assertArrayEquals(new byte[]{1, 2, 3}, dataDao.loadData(1, 0));
+    }
+
+    @Test
+    public void delete() {
+        dataDao.insertData(1, 0, DATA);
+        dataDao.insertData(1, 1, DATA);
+        dataDao.updateCompressedData(1, 0, DATA);
+        dataDao.deleteData(1);
+
+        assertFalse(dataDao.dataFile(1, 0).exists());
+        assertFalse(dataDao.dataFile(1, 0).getParentFile().exists());
+    }
+
+    @Test
+    public void identicalContentsAreStoredOnce() {
+        dataDao.insertData(1, 0, DATA);
+        dataDao.insertData(2, 0, DATA);
+        dataDao.copyData(2, 0, 1);
+        assertEquals(1, contents().size());
+        assertEquals(4, linkCount(dataDao.dataFile(1, 0)));
+
+        dataDao.updateData(2, 1, new byte[]{1, 2, 3});
+        dataDao.deleteData(1);
+        assertEquals(2, contents().size());
+
+        dataDao.insertData(3, 0, DATA);
+        assertEquals(0, dataDao.deleteData(3, 0));
+        assertEquals(DATA.length, dataDao.deleteData(2, 0));
+        assertEquals(1, contents().size());
+        assertArrayEquals(new byte[]{1, 2, 3}, dataDao.loadData(2, 1));
+        dataDao.deleteData(2);
+        assertEquals(0, contents().size());
+    }
+
+    @Test
+    public void rollbackLeavesFilesAsTheyWere() throws IOException {
+        dataDao.insertData(1, 0, DATA);
+        final File committed = dataDao.dataFile(1, 0);
+
+        transactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                dataDao.copyData(1, 0, 1);
+                dataDao.updateData(1, 0, new byte[]{1, 2, 3});
+                dataDao.updateCompressedData(1, 0, DATA);
+                dataDao.insertData(2, 0, DATA);
+
+                // The transaction sees its own changes, the others don't
+                assertArrayEquals(new byte[]{1, 2, 3}, dataDao.loadData(1, 0));
+                assertArrayEquals(DATA, dataDao.loadData(1, 1));
+                assertArrayEquals(DATA, readFile(committed));
+                status.setRollbackOnly();
+            }
+        });
+
+        assertArrayEquals(DATA, dataDao.loadData(1, 0));
+        assertNull(dataDao.loadData(1, 1));
+        assertNull(dataDao.loadCompressedData(1, 0));
+        assertNull(dataDao.loadData(2, 0));
+        assertEquals(1, committed.getParentFile().list().length);
+        assertEquals(1, contents().size());
+    }
+
+    @Test
+    public void commitAppliesChanges() {
+        dataDao.insertData(1, 0, DATA);
+        dataDao.insertData(1, 1, DATA);
+        final File deleted = dataDao.dataFile(1, 1);
+
+        transactionTemplate().execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                dataDao.updateData(1, 0, new byte[]{1, 2, 3});
+                dataDao.deleteData(1, 1);
+                assertNull(dataDao.loadData(1, 1));
+                assertArrayEquals(DATA, readFile(deleted));
+            }
+        });
+
+        assertArrayEquals(new byte[]{1, 2, 3}, dataDao.loadData(1, 0));
+        assertFalse(deleted.exists());
+        assertEquals(1, deleted.getParentFile().list().length);
+    }
+
+    private Collection<File> contents() {
+        return FileUtils.listFiles(new File(directory, "content"), null, true);
+    }
+
+    private static int linkCount(File file) {
+        try {
+            return (Integer) java.nio.file.Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        try {
+            return Files.toByteArray(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs the callbacks with transaction synchronization but without a database
+     */
+    private static TransactionTemplate transactionTemplate() {
+        return new TransactionTemplate(new AbstractPlatformTransactionManager() {
+            @Override
+            protected Object doGetTransaction() {
+                return new Object();
+            }
+
+            @Override
+            protected void doBegin(Object transaction, TransactionDefinition definition) {
+            }
+
+            @Override
+            protected void doCommit(DefaultTransactionStatus status) {
+            }
+
+            @Override
+            protected void doRollback(DefaultTransactionStatus status) {
+            }
+        });
+    }
+}
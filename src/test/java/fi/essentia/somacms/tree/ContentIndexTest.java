@@ -0,0 +1,57 @@
+package fi.essentia.somacms.tree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ContentIndexTest {
+    private ContentIndex contentIndex;
+
+    @Before
+    public void setup() {
+        contentIndex = new ContentIndex();
+        contentIndex.index(1, "<script src=\"jquery.min.js\"></script>");
+        contentIndex.index(2, "body { color: red; } .red { color: red; }");
+        contentIndex.index(3, "<p>Red <b>alert</b></p>");
+    }
+
+    @Test
+    public void terms() {
+        assertEquals(Arrays.asList("script", "src", "jquery", "min", "js", "script"), ContentIndex.terms("<script src=\"jquery.min.js\"></script>"));
+        assertEquals(Arrays.asList("\u00e4\u00e4", "x1"), ContentIndex.terms("a \u00c4\u00c4 x1"));
+    }
+
+    @Test
+    public void allTermsMustMatch() {
+        assertEquals(1, contentIndex.search("jquery.min.js", 10).size());
+        assertEquals(1, contentIndex.search("red alert", 10).size());
+        assertTrue(contentIndex.search("jquery alert", 10).isEmpty());
+        assertTrue(contentIndex.search("x", 10).isEmpty());
+    }
+
+    @Test
+    public void frequentMatchesComeFirst() {
+        List<ContentIndex.Hit> hits = contentIndex.search("RED", 10);
+        assertEquals(2, hits.size());
+        assertEquals(2, hits.get(0).getDocumentId());
+        assertEquals(3, hits.get(1).getDocumentId());
+        assertEquals(1, contentIndex.search("red", 1).size());
+    }
+
+    @Test
+    public void updatesReplaceTheContents() {
+        contentIndex.index(1, "plain text");
+        assertTrue(contentIndex.search("jquery", 10).isEmpty());
+        assertEquals(1, contentIndex.search("plain", 10).size());
+        assertEquals(false, contentIndex.indexIfAbsent(1, "jquery"));
+
+        contentIndex.remove(1);
+        assertTrue(contentIndex.search("plain", 10).isEmpty());
+        assertEquals(2, contentIndex.size());
+    }
+}
@@ -1,16 +1,48 @@
 package fi.essentia.somacms.tree;
 
+import fi.essentia.somacms.dao.ChangeLogDao;
+import fi.essentia.somacms.dao.ContentCache;
+import fi.essentia.somacms.dao.DataDao;
 import fi.essentia.somacms.dao.DocumentDao;
+import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.json.OperationResult;
+import fi.essentia.somacms.json.ReplicationStatus;
 import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.models.DocumentChange;
 import fi.essentia.somacms.models.Document;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DocumentManagerTest {
@@ -19,6 +51,7 @@ public class DocumentManagerTest {
     private DatabaseDocument root;
     private DatabaseDocument folder;
     private DatabaseDocument child;
+    private long lastId = 100;
 
     @Before
     public void set() {
@@ -27,8 +60,21 @@ public class DocumentManagerTest {
         mockDocumentDao = mock(DocumentDao.class);
         documentManager = new DocumentManagerImpl();
         documentManager.documentDao = mockDocumentDao;
+        documentManager.dataDao = mock(DataDao.class);
+        documentManager.contentCache = mock(ContentCache.class);
+        documentManager.versionDao = mock(VersionDao.class);
+        documentManager.changeLogDao = mock(ChangeLogDao.class);
+        when(documentManager.changeLogDao.currentTime()).thenReturn(new Date());
 
         when(mockDocumentDao.findAll()).thenReturn(documents);
+        when(mockDocumentDao.save(any(DatabaseDocument.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                DatabaseDocument document = (DatabaseDocument) invocation.getArguments()[0];
+                document.setId(++lastId);
+                return lastId;
+            }
+        });
 
         documentManager.initialize();
     }
@@ -52,5 +98,394 @@ public class DocumentManagerTest {
         assertEquals(root.getId(), documentManager.documentFromPath("/").getId());
         assertEquals(folder.getId(), documentManager.documentFromPath("/folder/").getId());
         assertEquals(child.getId(), documentManager.documentFromPath("/folder/child").getId());
+        assertEquals(child.getId(), documentManager.documentFromPath("folder/child").getId());
+        assertEquals(folder.getId(), documentManager.documentFromPath("folder").getId());
+        assertNull(documentManager.documentFromPath("/folder/other"));
+    }
+
+    @Test
+    public void createdDocumentsAreFoundByPath() {
+        TreeDocument created = documentManager.createFolder(folder.getId(), "created");
+        assertEquals(created, documentManager.documentFromPath("/folder/created/"));
+    }
+
+    @Test
+    public void deleteRemovesSubtreeFromPaths() {
+        documentManager.deleteDocument(folder.getId());
+        assertNull(documentManager.documentFromPath("/folder/"));
+        assertNull(documentManager.documentFromPath("/folder/child"));
+        assertEquals(root.getId(), documentManager.documentFromPath("/").getId());
+    }
+
+    @Test
+    public void storingSameContentsChangesNothing() throws Exception {
+        byte[] bytes = "<html><body>Unchanged</body></html>".getBytes();
+        TreeDocument stored = documentManager.storeDocument(folder.getId(), "page.html", bytes);
+        String contentHash = stored.getContentHash();
+
+        assertEquals(stored, documentManager.storeDocument(folder.getId(), "page.html", bytes.clone()));
+        assertEquals(contentHash, stored.getContentHash());
+        verify(documentManager.versionDao, never()).maxVersion(anyLong());
+        verify(mockDocumentDao, never()).update(any(DatabaseDocument.class));
+
+        documentManager.storeDocument(folder.getId(), "page.html", "<html><body>Changed</body></html>".getBytes());
+        verify(documentManager.versionDao).insertVersion(eq(stored.getId()), eq(1), any(Date.class));
+    }
+
+    @Test
+    public void concurrentWritesKeepEveryVersion() throws Exception {
+        final Map<Long, List<Integer>> versions = new ConcurrentHashMap<Long, List<Integer>>();
+        final String[] names = {"first.html", "second.html", "third.html"};
+        for (String name : names) {
+            TreeDocument document = documentManager.storeDocument(folder.getId(), name, name.getBytes());
+            versions.put(document.getId(), Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Long documentId = (Long) invocation.getArguments()[0];
+                versions.get(documentId).add((Integer) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(documentManager.versionDao).insertVersion(anyLong(), anyInt(), any(Date.class));
+        when(documentManager.versionDao.maxVersion(anyLong())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                List<Integer> documentVersions = versions.get((Long) invocation.getArguments()[0]);
+                return documentVersions.isEmpty() ? 0 : Collections.max(documentVersions);
+            }
+        });
+
+        final int writes = 100;
+        Thread[] threads = new Thread[6];
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < writes; j++) {
+                            String name = names[(thread + j) % names.length];
+                            documentManager.storeDocument(folder.getId(), name, (name + thread + "/" + j).getBytes());
+                        }
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        int total = 0;
+        for (List<Integer> documentVersions : versions.values()) {
+            List<Integer> sorted = new ArrayList<Integer>(documentVersions);
+            Collections.sort(sorted);
+            for (int i = 0; i < sorted.size(); i++) {
+                assertEquals(i + 1, (int) sorted.get(i));
+            }
+            total += sorted.size();
+        }
+        assertEquals(threads.length * writes, total);
+    }
+
+    @Test
+    public void versionStoredByAnotherNodeIsNotReused() throws Exception {
+        TreeDocument stored = documentManager.storeDocument(folder.getId(), "page.html", "<html>First</html>".getBytes());
+        when(documentManager.versionDao.maxVersion(stored.getId())).thenReturn(3);
+        documentManager.storeDocument(folder.getId(), "page.html", "<html>Second</html>".getBytes());
+        verify(documentManager.versionDao).insertVersion(eq(stored.getId()), eq(4), any(Date.class));
+    }
+
+    @Test
+    public void batchesStoringSameDocumentsInOppositeOrderDontDeadlock() throws Exception {
+        documentManager.transactionManager = mock(PlatformTransactionManager.class);
+        final TreeDocument first = documentManager.storeDocument(folder.getId(), "first.html", "first".getBytes());
+        final TreeDocument second = documentManager.storeDocument(folder.getId(), "second.html", "second".getBytes());
+        when(mockDocumentDao.findByIds(any(Collection.class))).thenReturn(Collections.<DatabaseDocument>emptyList());
+
+        // Both batches hold a document lock before either of them locks the rows, unless they lock in the same order
+        final CountDownLatch rowsLocked = new CountDownLatch(2);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                rowsLocked.countDown();
+                rowsLocked.await(1, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(mockDocumentDao).lockById(anyLong());
+
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final List<String> paths = i == 0 ? Arrays.asList(first.getPath(), second.getPath()) : Arrays.asList(second.getPath(), first.getPath());
+            final String contents = "batch" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        documentManager.applyOperations(Arrays.asList(
+                                BatchOperation.store(paths.get(0), contents.getBytes()),
+                                BatchOperation.store(paths.get(1), contents.getBytes())));
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void batchIsPublishedAfterCommit() {
+        documentManager.transactionManager = mock(PlatformTransactionManager.class);
+        final Map<Long, DatabaseDocument> saved = new ConcurrentHashMap<Long, DatabaseDocument>();
+        doAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                DatabaseDocument document = (DatabaseDocument) invocation.getArguments()[0];
+                document.setId(++lastId);
+                saved.put(lastId, document);
+                return lastId;
+            }
+        }).when(mockDocumentDao).save(any(DatabaseDocument.class));
+        when(mockDocumentDao.findByIds(any(Collection.class))).thenAnswer(new Answer<List<DatabaseDocument>>() {
+            @Override
+            public List<DatabaseDocument> answer(InvocationOnMock invocation) {
+                List<DatabaseDocument> found = new ArrayList<DatabaseDocument>();
+                for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                    if (saved.containsKey(id)) {
+                        found.add(saved.get(id));
+                    }
+                }
+                return found;
+            }
+        });
+        final AtomicReference<TreeDocument> beforeCommit = new AtomicReference<TreeDocument>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                beforeCommit.set(documentManager.documentFromPath("/folder/child"));
+                return null;
+            }
+        }).when(documentManager.changeLogDao).appendAll(any(Collection.class));
+
+        List<OperationResult> results = documentManager.applyOperations(Arrays.asList(
+                BatchOperation.folder("/folder/news"),
+                BatchOperation.store("/folder/news/index.html", "<html>First</html>".getBytes()),
+                BatchOperation.store("/folder/news/index.html", "<html>Second</html>".getBytes()),
+                BatchOperation.delete("/folder/child")));
+
+        assertEquals(OperationResult.CREATED, results.get(0).getOutcome());
+        assertEquals(OperationResult.CREATED, results.get(1).getOutcome());
+        assertEquals(OperationResult.STORED, results.get(2).getOutcome());
+        assertEquals(OperationResult.DELETED, results.get(3).getOutcome());
+        assertEquals(child.getId(), beforeCommit.get().getId());
+
+        TreeDocument page = documentManager.documentFromPath("/folder/news/index.html");
+        assertEquals(results.get(1).getDocumentId(), page.getId());
+        assertEquals(documentManager.documentFromPath("/folder/news").getId(), page.getParentId().longValue());
+        assertNull(documentManager.documentFromPath("/folder/child"));
+        verify(mockDocumentDao).deleteByIds(Arrays.asList(child.getId()));
+        verify(documentManager.versionDao, never()).insertVersion(anyLong(), eq(1), any(Date.class));
+        verify(documentManager.transactionManager).commit(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void lookupsWaitForWholeBatch() throws Exception {
+        documentManager.transactionManager = mock(PlatformTransactionManager.class);
+        final Map<Long, DatabaseDocument> saved = new ConcurrentHashMap<Long, DatabaseDocument>();
+        doAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) {
+                DatabaseDocument document = (DatabaseDocument) invocation.getArguments()[0];
+                document.setId(++lastId);
+                saved.put(lastId, document);
+                return lastId;
+            }
+        }).when(mockDocumentDao).save(any(DatabaseDocument.class));
+        when(mockDocumentDao.findByIds(any(Collection.class))).thenAnswer(new Answer<List<DatabaseDocument>>() {
+            @Override
+            public List<DatabaseDocument> answer(InvocationOnMock invocation) {
+                List<DatabaseDocument> found = new ArrayList<DatabaseDocument>();
+                for (Object id : (Collection<?>) invocation.getArguments()[0]) {
+                    found.add(saved.get(id));
+                }
+                return found;
+            }
+        });
+
+        // Looks up the second page while the first one is being indexed, after being added to the tree
+        final AtomicReference<TreeDocument> found = new AtomicReference<TreeDocument>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                found.set(documentManager.documentFromPath("/folder/news/second.html"));
+            }
+        };
+        when(documentManager.dataDao.loadData(anyLong(), eq(0))).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws InterruptedException {
+                if (reader.getState() == Thread.State.NEW) {
+                    reader.start();
+                    reader.join(200);
+                }
+                return null;
+            }
+        });
+
+        documentManager.applyOperations(Arrays.asList(
+                BatchOperation.folder("/folder/news"),
+                BatchOperation.store("/folder/news/first.html", "<html>First</html>".getBytes()),
+                BatchOperation.store("/folder/news/second.html", "<html>Second</html>".getBytes())));
+        reader.join();
+        assertNotNull(found.get());
+    }
+
+    @Test
+    public void failedBatchChangesNothing() {
+        documentManager.transactionManager = mock(PlatformTransactionManager.class);
+        try {
+            documentManager.applyOperations(Arrays.asList(
+                    BatchOperation.folder("/folder/news"),
+                    BatchOperation.delete("/folder/missing")));
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().startsWith("Operation 2 on /folder/missing failed"));
+        }
+
+        assertNull(documentManager.documentFromPath("/folder/news"));
+        verify(documentManager.changeLogDao, never()).appendAll(any(Collection.class));
+        verify(documentManager.transactionManager).rollback(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void storedTextIsSearchable() throws Exception {
+        byte[] bytes = "<html><body><p>Find the needle in the haystack</p></body></html>".getBytes();
+        TreeDocument stored = documentManager.storeDocument(folder.getId(), "page.html", bytes);
+        when(documentManager.dataDao.loadData(anyLong(), eq(0))).thenReturn(bytes);
+
+        List<ContentMatch> matches = documentManager.searchContent("NEEDLE", 10);
+        assertEquals(1, matches.size());
+        assertEquals(stored, matches.get(0).getDocument());
+        assertTrue(matches.get(0).getSnippet().contains("needle in the haystack"));
+
+        documentManager.deleteDocument(stored.getId());
+        assertTrue(documentManager.searchContent("needle", 10).isEmpty());
+    }
+
+    @Test
+    public void startFromSnapshot() throws Exception {
+        File file = File.createTempFile("tree", ".snapshot");
+        try {
+            DatabaseDocument deleted = new DatabaseDocument(3, "deleted", false);
+            deleted.setParentId(folder.getId());
+            TreeSnapshot.write(file, 10, new Date(10000000), Arrays.asList(root, folder, child, deleted));
+
+            DatabaseDocument renamed = new DatabaseDocument(child.getId(), "renamed", false);
+            renamed.setParentId(folder.getId());
+            ChangeLogDao changeLogDao = mock(ChangeLogDao.class);
+            when(changeLogDao.currentTime()).thenReturn(new Date(10060000));
+            when(changeLogDao.changedSince(eq(10L), any(Date.class))).thenReturn(Arrays.asList(child.getId(), deleted.getId()));
+            DocumentDao documentDao = mock(DocumentDao.class);
+            when(documentDao.findByIds(Arrays.asList(child.getId(), deleted.getId()))).thenReturn(Arrays.asList(renamed));
+            when(documentDao.count()).thenReturn(3);
+
+            DocumentManagerImpl snapshotManager = new DocumentManagerImpl();
+            snapshotManager.documentDao = documentDao;
+            snapshotManager.changeLogDao = changeLogDao;
+            snapshotManager.dataDao = mock(DataDao.class);
+            snapshotManager.snapshotFile = file.getPath();
+            snapshotManager.snapshotMaxAgeHours = 1;
+            snapshotManager.initialize();
+
+            verify(documentDao, never()).findAll();
+            assertEquals(child.getId(), snapshotManager.documentFromPath("/folder/renamed").getId());
+            assertNull(snapshotManager.documentFromPath("/folder/child"));
+            assertNull(snapshotManager.documentById(deleted.getId()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void replicateChanges() {
+        DatabaseDocument remoteFolder = new DatabaseDocument(50, "remote", true);
+        remoteFolder.setParentId(folder.getId());
+        DatabaseDocument remoteFile = new DatabaseDocument(51, "file.txt", false);
+        remoteFile.setParentId(remoteFolder.getId());
+        remoteFile.setMimeType("text/plain");
+
+        // Parents are added before their children regardless of the order of the changes
+        ChangeLogDao changeLogDao = documentManager.changeLogDao;
+        when(changeLogDao.changesSince(eq(0L), any(Date.class))).thenReturn(Arrays.asList(new DocumentChange(3, 51), new DocumentChange(4, 50)));
+        when(mockDocumentDao.findByIds(Arrays.asList(51L, 50L))).thenReturn(Arrays.asList(remoteFile, remoteFolder));
+        documentManager.replicateChanges();
+
+        assertEquals(remoteFile.getId(), documentManager.documentFromPath("/folder/remote/file.txt").getId());
+        assertEquals(1, documentManager.documentsByPath("remote/file", 10).size());
+        ReplicationStatus status = documentManager.getReplicationStatus();
+        assertEquals(4, status.getLastChangeId());
+        assertEquals(2, status.getPendingChanges());
+        assertTrue(status.getLagMillis() >= 0);
+
+        // A change committed late deletes the folder
+        when(changeLogDao.changesAfter(eq(4L), any(Collection.class))).thenReturn(Arrays.asList(new DocumentChange(2, 50)));
+        when(mockDocumentDao.findByIds(Arrays.asList(50L))).thenReturn(Collections.<DatabaseDocument>emptyList());
+        documentManager.replicateChanges();
+
+        assertNull(documentManager.documentFromPath("/folder/remote/"));
+        assertNull(documentManager.documentById(remoteFile.getId()));
+        assertEquals(1, documentManager.getReplicationStatus().getPendingChanges());
+    }
+
+    @Test
+    public void gapTooLargeToTrackReloadsAllDocuments() {
+        ChangeLogDao changeLogDao = documentManager.changeLogDao;
+        when(changeLogDao.changesSince(eq(0L), any(Date.class))).thenReturn(Arrays.asList(new DocumentChange(1, folder.getId())));
+        when(mockDocumentDao.findByIds(Arrays.asList(folder.getId()))).thenReturn(Arrays.asList(folder));
+        documentManager.replicateChanges();
+
+        // The child was deleted by one of the changes in the gap
+        when(changeLogDao.changesAfter(eq(1L), any(Collection.class))).thenReturn(Arrays.asList(new DocumentChange(50000, folder.getId())));
+        when(mockDocumentDao.findAll()).thenReturn(Arrays.asList(root, folder));
+        documentManager.replicateChanges();
+
+        assertNull(documentManager.documentById(child.getId()));
+        assertEquals(folder.getId(), documentManager.documentFromPath("/folder/").getId());
+        assertEquals(0, documentManager.getReplicationStatus().getPendingChanges());
+        assertEquals(50000, documentManager.getReplicationStatus().getLastChangeId());
+    }
+
+    @Test
+    public void snapshotIsRewrittenWhileRunning() throws Exception {
+        File file = File.createTempFile("tree", ".snapshot");
+        file.delete();
+        try {
+            documentManager.snapshotFile = file.getPath();
+            documentManager.snapshotIntervalMinutes = 0;
+            when(documentManager.changeLogDao.changesSince(eq(0L), any(Date.class))).thenReturn(Arrays.asList(new DocumentChange(7, child.getId())));
+            when(mockDocumentDao.findByIds(Arrays.asList(child.getId()))).thenReturn(Arrays.asList(child));
+            Thread.sleep(10);
+            documentManager.replicateChanges();
+
+            for (int i = 0; i < 500 && !file.exists(); i++) {
+                Thread.sleep(10);
+            }
+            TreeSnapshot snapshot = TreeSnapshot.read(file);
+            assertEquals(7, snapshot.getChangeId());
+            assertEquals(3, snapshot.getDocuments().size());
+        } finally {
+            file.delete();
+        }
     }
 }
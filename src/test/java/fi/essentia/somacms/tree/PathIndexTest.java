@@ -0,0 +1,75 @@
+package fi.essentia.somacms.tree;
+
+import com.google.common.base.Predicates;
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class PathIndexTest {
+    private PathIndex pathIndex;
+    private TreeDocument root;
+    private TreeDocument styles;
+    private TreeDocument mainCss;
+    private TreeDocument stylesCss;
+    private TreeDocument index;
+
+    @Before
+    public void setup() {
+        root = document(TreeDocument.ROOT_ID, "root", true, null);
+        styles = document(1, "styles", true, root);
+        mainCss = document(2, "Main.css", false, styles);
+        stylesCss = document(3, "styles.css", false, root);
+        index = document(4, "index.html", false, root);
+
+        pathIndex = new PathIndex();
+        for (TreeDocument document : Arrays.asList(styles, mainCss, stylesCss, index)) {
+            pathIndex.add(document);
+        }
+    }
+
+    private TreeDocument document(long id, String name, boolean folder, TreeDocument parent) {
+        TreeDocument document = new TreeDocument(new DatabaseDocument(id, name, folder));
+        if (parent != null) {
+            document.setParent(parent);
+            parent.addChild(document);
+        }
+        return document;
+    }
+
+    @Test
+    public void substringIgnoresCase() {
+        assertEquals(Arrays.asList(mainCss), search("MAIN"));
+        assertEquals(Arrays.asList(index), search("x.h"));
+        assertTrue(search("missing").isEmpty());
+    }
+
+    @Test
+    public void shortQueries() {
+        assertEquals(3, search("s").size());
+        assertEquals(Arrays.asList(index), search("x."));
+    }
+
+    @Test
+    public void nameMatchesComeFirst() {
+        List<TreeDocument> documents = search("styles");
+        assertEquals(Arrays.asList(styles, stylesCss, mainCss), documents);
+    }
+
+    @Test
+    public void limitAndRemove() {
+        assertEquals(2, pathIndex.search("css", Predicates.<TreeDocument>alwaysTrue(), 2).size());
+
+        pathIndex.remove(mainCss);
+        assertEquals(Arrays.asList(stylesCss), search("css"));
+    }
+
+    private List<TreeDocument> search(String query) {
+        return pathIndex.search(query, Predicates.<TreeDocument>alwaysTrue(), 10);
+    }
+}
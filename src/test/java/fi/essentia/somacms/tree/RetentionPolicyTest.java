@@ -0,0 +1,71 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.models.DocumentVersion;
+import org.junit.Test;
+
+import java.util.*;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class RetentionPolicyTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long NOW = 1000 * 24 * HOUR;
+
+    @Test
+    public void disabledByDefault() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 0);
+        assertFalse(policy.isEnabled());
+        assertTrue(policy.expiredVersions(versions(5, HOUR), sizes(5, 100), NOW).isEmpty());
+    }
+
+    @Test
+    public void keepsNewestVersions() {
+        RetentionPolicy policy = new RetentionPolicy(2, 0, 0);
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(policy.expiredVersions(versions(5, HOUR), sizes(5, 100), NOW)));
+    }
+
+    @Test
+    public void thinsOldVersionsToOnePerDay() {
+        // Five hours apart, so that only the oldest version was stored on the day before the others
+        List<DocumentVersion> versions = versions(6, 5 * HOUR);
+        RetentionPolicy policy = new RetentionPolicy(0, 30, 0);
+        assertTrue(policy.expiredVersions(versions, sizes(6, 100), NOW).isEmpty());
+        assertEquals(Arrays.asList(2, 3, 4, 5), new ArrayList<Integer>(policy.expiredVersions(versions, sizes(6, 100), NOW + 60 * 24 * HOUR)));
+    }
+
+    @Test
+    public void keepsVersionsWithinByteBudget() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 250);
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<Integer>(policy.expiredVersions(versions(5, HOUR), sizes(5, 100), NOW)));
+    }
+
+    @Test
+    public void alwaysKeepsNewestVersion() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 10);
+        assertEquals(Arrays.asList(1, 2, 3, 4), new ArrayList<Integer>(policy.expiredVersions(versions(5, HOUR), sizes(5, 100), NOW)));
+    }
+
+    /**
+     * Versions from 1 to count, the newest first and one interval apart ending an hour before NOW
+     */
+    static List<DocumentVersion> versions(int count, long interval) {
+        List<DocumentVersion> versions = new ArrayList<DocumentVersion>();
+        for (int i = count; i >= 1; i--) {
+            DocumentVersion version = new DocumentVersion();
+            version.setDocument_version(i);
+            version.setCreation_time(new Date(NOW - HOUR - (count - i) * interval));
+            versions.add(version);
+        }
+        return versions;
+    }
+
+    private static Map<Integer, Long> sizes(int count, long size) {
+        Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+        for (int i = 1; i <= count; i++) {
+            sizes.put(i, size);
+        }
+        return sizes;
+    }
+}
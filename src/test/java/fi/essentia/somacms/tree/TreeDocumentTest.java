@@ -6,11 +6,17 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -31,6 +37,7 @@ public class TreeDocumentTest {
         treeDocument.setParent(parent);
 
         child = new TreeDocument(new DatabaseDocument(2, "child", false));
+        child.setParent(treeDocument);
         treeDocument.addChild(child);
     }
 
@@ -66,6 +73,86 @@ public class TreeDocumentTest {
         assertEquals("/" + parent.getName() + "/" + treeDocument.getName(), treeDocument.getPath());
     }
 
+    @Test
+    public void cachedPath() {
+        assertSame(treeDocument.getPath(), treeDocument.getPath());
+        assertSame(treeDocument.getBreadcrumbs(), treeDocument.getBreadcrumbs());
+    }
+
+    @Test
+    public void pathChangesWithAncestors() {
+        assertEquals("/parent/document/child", child.getPath());
+        assertEquals(4, child.getBreadcrumbs().size());
+
+        TreeDocument otherParent = new TreeDocument(new DatabaseDocument(7, "other", true));
+        otherParent.setParent(root);
+        treeDocument.setParent(otherParent);
+        otherParent.addChild(treeDocument);
+        assertEquals("/other/document/child", child.getPath());
+
+        otherParent.setName("renamed");
+        assertEquals("/renamed/document/child", child.getPath());
+        assertEquals(otherParent, child.getBreadcrumbs().get(1));
+    }
+
+    /**
+     * Readers keep building the path at the bottom of a deep folder chain while a folder at the top is renamed. The
+     * paths they leave cached must always be the ones after the latest rename.
+     */
+    @Test
+    public void concurrentRenames() throws InterruptedException {
+        final int depth = 50;
+        TreeDocument folder = child;
+        child.setFolder(true);
+        for (int i = 0; i < depth; i++) {
+            TreeDocument subfolder = new TreeDocument(new DatabaseDocument(100 + i, "f" + i, true));
+            subfolder.setParent(folder);
+            folder.addChild(subfolder);
+            folder = subfolder;
+        }
+        final TreeDocument bottom = folder;
+        final String suffix = bottom.getPath().substring("/parent/document".length());
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            assertTrue(bottom.getPath().endsWith(suffix));
+                            assertEquals(depth + 4, bottom.getBreadcrumbs().size());
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+
+        for (int i = 0; i < 500 && failure.get() == null; i++) {
+            treeDocument.setName("document-" + i);
+            long readsBefore = reads.get();
+            while (reads.get() < readsBefore + 4 && failure.get() == null) {
+                Thread.yield();
+            }
+            assertEquals("/parent/document-" + i + suffix, bottom.getPath());
+            assertEquals("document-" + i, bottom.getBreadcrumbs().get(2).getName());
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
     @Test
     public void removeChild() {
         treeDocument.removeChild(parent);
@@ -88,4 +175,106 @@ public class TreeDocumentTest {
         List<Document> children = new ArrayList<Document>(treeDocument.getChildren());
         assertArrayEquals(new Document[]{xFolder, anotherChild, child, xChild}, children.toArray());
     }
+
+    @Test
+    public void childWithSameNameReplacesPrevious() {
+        TreeDocument first = new TreeDocument(new DatabaseDocument(4, "b", false));
+        TreeDocument second = new TreeDocument(new DatabaseDocument(5, "b", false));
+        TreeDocument other = new TreeDocument(new DatabaseDocument(6, "a", false));
+
+        treeDocument.addChild(first);
+        treeDocument.addChild(other);
+        treeDocument.addChild(second);
+
+        assertArrayEquals(new Document[]{other, second, child}, treeDocument.getChildren().toArray());
+        assertSame(second, treeDocument.childByName("b"));
+    }
+
+    @Test
+    public void childrenAreSnapshots() {
+        Collection<TreeDocument> before = treeDocument.getChildren();
+        treeDocument.addChild(new TreeDocument(new DatabaseDocument(4, "added", false)));
+        treeDocument.removeChild(child);
+
+        assertEquals(1, before.size());
+        assertSame(child, before.iterator().next());
+        assertEquals("added", treeDocument.getChildren().get(0).getName());
+    }
+
+    /**
+     * Writers keep adding and removing children while readers check that every snapshot they see is sorted and
+     * consistent with itself
+     */
+    @Test
+    public void concurrentChildrenChanges() throws InterruptedException {
+        final int writers = 4;
+        final int readers = 4;
+        final int iterations = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch writersDone = new CountDownLatch(writers);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            TreeDocument document = new TreeDocument(new DatabaseDocument(1000 + i, "w" + writer + "-" + i, i % 3 == 0));
+                            treeDocument.addChild(document);
+                            if (i % 2 == 1) {
+                                treeDocument.removeChild(document);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        writersDone.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (running.get()) {
+                            TreeDocument previous = null;
+                            for (TreeDocument document : treeDocument.getChildren()) {
+                                if (previous != null && previous.isFolder() == document.isFolder()) {
+                                    assertTrue(previous.getName().compareTo(document.getName()) < 0);
+                                }
+                                assertFalse(previous != null && !previous.isFolder() && document.isFolder());
+                                previous = document;
+                            }
+                            assertSame(child, treeDocument.childByName(child.getName()));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        writersDone.await();
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(1 + writers * iterations / 2, treeDocument.getChildren().size());
+        assertEquals("w0-0", treeDocument.getChildren().get(0).getName());
+    }
 }
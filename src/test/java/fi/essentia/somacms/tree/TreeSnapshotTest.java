@@ -0,0 +1,80 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+public class TreeSnapshotTest {
+    private File file;
+    private DatabaseDocument root;
+    private DatabaseDocument document;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("tree", ".snapshot");
+        root = new DatabaseDocument(TreeDocument.ROOT_ID, "root", true);
+        document = new DatabaseDocument(1, "index.html", false);
+        document.setParentId(root.getId());
+        document.setSize(1234);
+        document.setCompressedSize(321L);
+        document.setMimeType("text/html");
+        document.setContentHash("a9993e364706816aba3e25717850c26c9cd0d89d");
+        document.setModified(new Date(1000000));
+    }
+
+    @After
+    public void cleanup() {
+        file.delete();
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        TreeSnapshot.write(file, 42, new Date(5000), Arrays.asList(root, document));
+        TreeSnapshot snapshot = TreeSnapshot.read(file);
+
+        assertEquals(42, snapshot.getChangeId());
+        assertEquals(new Date(5000), snapshot.getChangeTime());
+        assertEquals(2, snapshot.getDocuments().size());
+
+        DatabaseDocument readRoot = snapshot.getDocuments().get(0);
+        assertNull(readRoot.getParentId());
+        assertNull(readRoot.getMimeType());
+        assertNull(readRoot.getCompressedSize());
+
+        DatabaseDocument readDocument = snapshot.getDocuments().get(1);
+        assertEquals(document.getName(), readDocument.getName());
+        assertEquals(Long.valueOf(0), readDocument.getParentId());
+        assertEquals(1234, readDocument.getSize());
+        assertEquals(Long.valueOf(321), readDocument.getCompressedSize());
+        assertEquals(document.getContentHash(), readDocument.getContentHash());
+        assertEquals(document.getModified(), readDocument.getModified());
+        assertNull(readDocument.getCreated());
+    }
+
+    @Test
+    public void corruptSnapshot() throws IOException {
+        TreeSnapshot.write(file, 42, new Date(5000), Arrays.asList(root, document));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(40);
+        randomAccessFile.write(0xff);
+        randomAccessFile.close();
+
+        try {
+            TreeSnapshot.read(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package fi.essentia.somacms.tree;
+
+import fi.essentia.somacms.dao.DataDao;
+import fi.essentia.somacms.dao.DocumentDao;
+import fi.essentia.somacms.dao.VersionDao;
+import fi.essentia.somacms.models.DocumentVersion;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.TransactionSystemException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class VersionCompactorTest {
+    private static final long DOCUMENT_ID = 7;
+    private VersionCompactor compactor;
+    private List<DocumentVersion> versions;
+
+    @Before
+    public void setup() {
+        compactor = new VersionCompactor();
+        compactor.documentDao = mock(DocumentDao.class);
+        compactor.dataDao = mock(DataDao.class);
+        compactor.versionDao = mock(VersionDao.class);
+        compactor.documentManager = mock(DocumentManager.class);
+        compactor.transactionManager = mock(PlatformTransactionManager.class);
+
+        // The current contents and four archived versions, the second one a delta against the first one
+        versions = new ArrayList<DocumentVersion>(RetentionPolicyTest.versions(4, 60 * 1000));
+        DocumentVersion current = new DocumentVersion();
+        versions.add(0, current);
+        when(compactor.versionDao.documentsWithVersions(eq(-1L), anyInt())).thenReturn(Arrays.asList(DOCUMENT_ID));
+        when(compactor.versionDao.documentsWithVersions(eq(DOCUMENT_ID), anyInt())).thenReturn(Collections.<Long>emptyList());
+        when(compactor.versionDao.findByDocumentId(DOCUMENT_ID)).thenReturn(versions);
+        when(compactor.dataDao.dataSize(eq(DOCUMENT_ID), anyInt())).thenReturn(1000L);
+        when(compactor.dataDao.deleteData(eq(DOCUMENT_ID), anyInt())).thenReturn(1000L);
+        Map<Integer, Integer> deltaBases = new HashMap<Integer, Integer>();
+        deltaBases.put(2, 1);
+        when(compactor.versionDao.deltaBases(DOCUMENT_ID)).thenReturn(deltaBases);
+        when(compactor.documentManager.loadVersion(DOCUMENT_ID, 2)).thenReturn(new byte[1200]);
+    }
+
+    @Test
+    public void disabledPolicyRemovesNothing() {
+        compactor.compact();
+        verify(compactor.versionDao, never()).deleteVersion(anyLong(), anyInt());
+        assertEquals(null, compactor.getLastReport());
+    }
+
+    @Test
+    public void removesExpiredVersions() {
+        compactor.keepVersions = 3;
+        compactor.compact();
+
+        verify(compactor.documentDao).lockById(DOCUMENT_ID);
+        verify(compactor.dataDao).deleteData(DOCUMENT_ID, 1);
+        verify(compactor.versionDao).deleteVersion(DOCUMENT_ID, 1);
+        verify(compactor.versionDao, never()).deleteVersion(DOCUMENT_ID, 0);
+
+        // The delta against the removed version is stored in full
+        verify(compactor.dataDao).updateData(DOCUMENT_ID, 2, new byte[1200]);
+        verify(compactor.versionDao).setDeltaBase(DOCUMENT_ID, 2, null);
+
+        assertEquals(1, compactor.getLastReport().getDocumentsExamined());
+        assertEquals(1, compactor.getLastReport().getVersionsRemoved());
+        assertEquals(800, compactor.getLastReport().getBytesReclaimed());
+    }
+
+    @Test
+    public void sharedContentsAreNotCounted() {
+        compactor.keepVersions = 3;
+        when(compactor.versionDao.deltaBases(DOCUMENT_ID)).thenReturn(new HashMap<Integer, Integer>());
+        when(compactor.dataDao.deleteData(DOCUMENT_ID, 1)).thenReturn(0L);
+        compactor.compact();
+
+        assertEquals(1, compactor.getLastReport().getVersionsRemoved());
+        assertEquals(0, compactor.getLastReport().getBytesReclaimed());
+    }
+
+    @Test
+    public void failedCommitIsNotCounted() {
+        compactor.keepVersions = 3;
+        doThrow(new TransactionSystemException("Commit failed")).when(compactor.transactionManager).commit(any(TransactionStatus.class));
+        compactor.compact();
+
+        assertEquals(1, compactor.getLastReport().getDocumentsExamined());
+        assertEquals(0, compactor.getLastReport().getVersionsRemoved());
+        assertEquals(0, compactor.getLastReport().getBytesReclaimed());
+    }
+}
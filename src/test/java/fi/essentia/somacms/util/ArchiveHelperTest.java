@@ -0,0 +1,256 @@
+package fi.essentia.somacms.util;
+
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.json.Imported;
+import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.tree.DocumentManager;
+import fi.essentia.somacms.tree.TreeDocument;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ArchiveHelperTest {
+    private ArchiveHelper archiveHelper;
+    private DocumentManager documentManager;
+    private TreeDocument root;
+    private long lastId = 100;
+
+    @Before
+    public void setup() throws Exception {
+        root = new TreeDocument(new DatabaseDocument(TreeDocument.ROOT_ID, "root", true));
+        documentManager = mock(DocumentManager.class);
+        when(documentManager.documentById(TreeDocument.ROOT_ID)).thenReturn(root);
+        when(documentManager.createFolder(anyLong(), anyString())).thenAnswer(new Answer<TreeDocument>() {
+            @Override
+            public TreeDocument answer(InvocationOnMock invocation) {
+                return add(documentManager.documentById((Long) invocation.getArguments()[0]), (String) invocation.getArguments()[1], true);
+            }
+        });
+        when(documentManager.storeDocument(anyLong(), anyString(), any(byte[].class))).thenAnswer(new Answer<TreeDocument>() {
+            @Override
+            public TreeDocument answer(InvocationOnMock invocation) {
+                return add(documentManager.documentById((Long) invocation.getArguments()[0]), (String) invocation.getArguments()[1], false);
+            }
+        });
+
+        archiveHelper = new ArchiveHelper();
+        archiveHelper.documentManager = documentManager;
+        archiveHelper.transactionManager = mock(PlatformTransactionManager.class);
+        archiveHelper.windowEntries = 2;
+    }
+
+    private TreeDocument add(TreeDocument parent, String name, boolean folder) {
+        TreeDocument document = new TreeDocument(new DatabaseDocument(++lastId, name, folder));
+        document.setParentId(parent.getId());
+        document.setParent(parent);
+        parent.addChild(document);
+        when(documentManager.documentById(document.getId())).thenReturn(document);
+        return document;
+    }
+
+    @Test
+    public void createsFoldersOnTheFly() throws Exception {
+        byte[] archive = archive("site/css/style.css", "site/", "./site/index.html", "site/images/", "readme.txt");
+        assertEquals(3, archiveHelper.storeDocuments(root, new ByteArrayInputStream(archive)).getStored());
+
+        TreeDocument site = root.childByName("site");
+        assertNotNull(site.childByName("css").childByName("style.css"));
+        assertNotNull(site.childByName("index.html"));
+        assertNotNull(site.childByName("images"));
+        assertNotNull(root.childByName("readme.txt"));
+        verify(documentManager, times(3)).createFolder(anyLong(), anyString());
+
+        // Five entries two at a time
+        verify(archiveHelper.transactionManager, times(3)).commit(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void skipsUnchangedFiles() throws Exception {
+        TreeDocument unchanged = add(root, "unchanged.html", false);
+        unchanged.setContentHash("unchanged");
+        doReturn(unchanged).when(documentManager).storeDocument(eq(TreeDocument.ROOT_ID), eq("unchanged.html"), any(byte[].class));
+        Imported imported = archiveHelper.storeDocuments(root, new ByteArrayInputStream(archive("unchanged.html", "changed.html")));
+        assertEquals(1, imported.getStored());
+        assertEquals(1, imported.getSkipped());
+        verify(documentManager, never()).reloadDocuments(any(Collection.class));
+    }
+
+    @Test
+    public void reloadsDocumentsOfFailedWindow() throws Exception {
+        doThrow(new IllegalStateException()).when(documentManager).storeDocument(anyLong(), eq("broken.html"), any(byte[].class));
+        byte[] archive = archive("first.html", "second.html", "folder/broken.html");
+        try {
+            archiveHelper.storeDocuments(root, new ByteArrayInputStream(archive));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // Only the window with the broken document was rolled back, and the folder created in it is dropped from memory
+        TreeDocument folder = root.childByName("folder");
+        verify(documentManager).reloadDocuments(new HashSet<Long>(Arrays.asList(folder.getId())));
+        verify(archiveHelper.transactionManager).rollback(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void rejectsPathsOutsideTheFolder() throws Exception {
+        try {
+            archiveHelper.storeDocuments(root, new ByteArrayInputStream(archive("../outside.html")));
+            fail();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        verify(documentManager, times(0)).reloadDocuments(any(Collection.class));
+    }
+
+    @Test
+    public void writesArchiveAsContentsAreRead() throws Exception {
+        archiveHelper.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        archiveHelper.prefetchEntries = 2;
+        archiveHelper.initialize();
+        TreeDocument site = add(root, "site", true);
+        for (int i = 0; i < 5; i++) {
+            TreeDocument page = add(site, "page" + i + ".html", false);
+            page.setMimeType("text/html");
+            when(archiveHelper.readOnlyDataDao.loadData(page.getId(), 0)).thenReturn(("<html>" + i + "</html>").getBytes());
+        }
+        TreeDocument image = add(site, "image.jpg", false);
+        image.setMimeType("image/jpeg");
+        when(archiveHelper.readOnlyDataDao.loadData(image.getId(), 0)).thenReturn(new byte[1000]);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        archiveHelper.writeArchive(site, bytes);
+        archiveHelper.destroy();
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("/site/", in.getNextEntry().getName());
+        ZipEntry entry = in.getNextEntry();
+        assertEquals("/site/image.jpg", entry.getName());
+        assertEquals(ZipEntry.STORED, entry.getMethod());
+        assertEquals(1000, IOUtils.toByteArray(in).length);
+        for (int i = 0; i < 5; i++) {
+            entry = in.getNextEntry();
+            assertEquals("/site/page" + i + ".html", entry.getName());
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertEquals("<html>" + i + "</html>", new String(IOUtils.toByteArray(in)));
+        }
+        assertNull(in.getNextEntry());
+    }
+
+    @Test
+    public void streamsLargeFiles() throws Exception {
+        archiveHelper.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        archiveHelper.streamBytes = 100;
+        archiveHelper.initialize();
+        TreeDocument site = add(root, "site", true);
+        TreeDocument video = add(site, "a.mp4", false);
+        video.setMimeType("video/mp4");
+        video.setSize(5000);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws IOException {
+                ((OutputStream) invocation.getArguments()[2]).write(new byte[5000]);
+                return null;
+            }
+        }).when(archiveHelper.readOnlyDataDao).writeData(eq(video.getId()), eq(0), any(OutputStream.class));
+        TreeDocument page = add(site, "b.html", false);
+        page.setMimeType("text/html");
+        page.setSize(13);
+        when(archiveHelper.readOnlyDataDao.loadData(page.getId(), 0)).thenReturn("<html></html>".getBytes());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        archiveHelper.writeArchive(site, bytes);
+        archiveHelper.destroy();
+        verify(archiveHelper.readOnlyDataDao, never()).loadData(video.getId(), 0);
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("/site/", in.getNextEntry().getName());
+        assertEquals("/site/a.mp4", in.getNextEntry().getName());
+        assertEquals(5000, IOUtils.toByteArray(in).length);
+        assertEquals("/site/b.html", in.getNextEntry().getName());
+        assertEquals("<html></html>", new String(IOUtils.toByteArray(in)));
+        assertNull(in.getNextEntry());
+    }
+
+    @Test
+    public void fileGrowingDuringExportKeepsEntriesInStep() throws Exception {
+        archiveHelper.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        archiveHelper.streamBytes = 100;
+        archiveHelper.prefetchEntries = 1;
+        archiveHelper.initialize();
+        TreeDocument site = add(root, "site", true);
+        final TreeDocument[] pages = new TreeDocument[3];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = add(site, "page" + i + ".html", false);
+            pages[i].setMimeType("text/html");
+            pages[i].setSize(14);
+            when(archiveHelper.readOnlyDataDao.loadData(pages[i].getId(), 0)).thenReturn(("<html>" + i + "</html>").getBytes());
+        }
+        // The second page is saved with larger contents while the first one is being written
+        when(archiveHelper.readOnlyDataDao.loadData(pages[0].getId(), 0)).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) {
+                pages[1].setSize(5000);
+                return "<html>0</html>".getBytes();
+            }
+        });
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        archiveHelper.writeArchive(site, bytes);
+        archiveHelper.destroy();
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("/site/", in.getNextEntry().getName());
+        for (int i = 0; i < pages.length; i++) {
+            assertEquals("/site/page" + i + ".html", in.getNextEntry().getName());
+            assertEquals("<html>" + i + "</html>", new String(IOUtils.toByteArray(in)));
+        }
+        assertNull(in.getNextEntry());
+    }
+
+    private static byte[] archive(String... names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        for (String name : names) {
+            out.putNextEntry(new ZipEntry(name));
+            if (!name.endsWith("/")) {
+                out.write(("<html>" + name + "</html>").getBytes());
+            }
+            out.closeEntry();
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+}
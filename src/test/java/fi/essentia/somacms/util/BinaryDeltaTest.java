@@ -0,0 +1,71 @@
+package fi.essentia.somacms.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assert.assertArrayEquals;
+
+public class BinaryDeltaTest {
+    private static final byte[] TEXT = ("<html>\n<head><title>Front page</title></head>\n<body>\n" +
+            "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>\n" +
+            "<p>Sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.</p>\n" +
+            "</body>\n</html>\n").getBytes();
+
+    @Test
+    public void smallEdit() {
+        byte[] edited = new String(TEXT).replace("Sed do", "Sed non").getBytes();
+        byte[] delta = BinaryDelta.encode(TEXT, edited);
+
+        assertArrayEquals(edited, BinaryDelta.apply(TEXT, delta));
+        assertTrue(delta.length < edited.length / 4);
+    }
+
+    @Test
+    public void edgeCases() {
+        byte[] empty = new byte[0];
+        assertArrayEquals(empty, BinaryDelta.apply(TEXT, BinaryDelta.encode(TEXT, empty)));
+        assertArrayEquals(TEXT, BinaryDelta.apply(empty, BinaryDelta.encode(empty, TEXT)));
+        assertArrayEquals(TEXT, BinaryDelta.apply(TEXT, BinaryDelta.encode(TEXT, TEXT)));
+        byte[] tiny = {1, 2, 3};
+        assertArrayEquals(tiny, BinaryDelta.apply(TEXT, BinaryDelta.encode(TEXT, tiny)));
+    }
+
+    @Test
+    public void randomEdits() {
+        Random random = new Random(1);
+        byte[] version = new byte[20000];
+        random.nextBytes(version);
+        for (int i = 0; i < 50; i++) {
+            byte[] next = edit(version, random);
+            assertArrayEquals(next, BinaryDelta.apply(version, BinaryDelta.encode(version, next)));
+            version = next;
+        }
+    }
+
+    private byte[] edit(byte[] bytes, Random random) {
+        int start = random.nextInt(bytes.length);
+        int removed = Math.min(random.nextInt(200), bytes.length - start);
+        byte[] inserted = new byte[random.nextInt(200)];
+        random.nextBytes(inserted);
+
+        byte[] result = new byte[bytes.length - removed + inserted.length];
+        System.arraycopy(bytes, 0, result, 0, start);
+        System.arraycopy(inserted, 0, result, start, inserted.length);
+        System.arraycopy(bytes, start + removed, result, start + inserted.length, bytes.length - start - removed);
+        return result;
+    }
+
+    @Test
+    public void wrongBase() {
+        byte[] delta = BinaryDelta.encode(TEXT, "something else".getBytes());
+        try {
+            BinaryDelta.apply("another base".getBytes(), delta);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
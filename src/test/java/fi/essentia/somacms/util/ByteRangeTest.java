@@ -0,0 +1,50 @@
+package fi.essentia.somacms.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangeTest {
+    private static final long SIZE = 1000;
+
+    @Test
+    public void singleRange() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-499", SIZE);
+        assertEquals(1, ranges.size());
+        assertEquals(0, ranges.get(0).getStart());
+        assertEquals(499, ranges.get(0).getEnd());
+        assertEquals(500, ranges.get(0).getLength());
+        assertEquals("bytes 0-499/1000", ranges.get(0).contentRange(SIZE));
+    }
+
+    @Test
+    public void openAndSuffixRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=900-, -100, 990-2000", SIZE);
+        assertEquals(3, ranges.size());
+        assertEquals(900, ranges.get(0).getStart());
+        assertEquals(999, ranges.get(0).getEnd());
+        assertEquals(900, ranges.get(1).getStart());
+        assertEquals(999, ranges.get(1).getEnd());
+        assertEquals(990, ranges.get(2).getStart());
+        assertEquals(999, ranges.get(2).getEnd());
+    }
+
+    @Test
+    public void unsatisfiable() {
+        assertTrue(ByteRange.parse("bytes=1000-1100", SIZE).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", SIZE).isEmpty());
+    }
+
+    @Test
+    public void malformed() {
+        assertNull(ByteRange.parse(null, SIZE));
+        assertNull(ByteRange.parse("items=0-1", SIZE));
+        assertNull(ByteRange.parse("bytes=500-100", SIZE));
+        assertNull(ByteRange.parse("bytes=abc", SIZE));
+        assertNull(ByteRange.parse("bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33", SIZE));
+    }
+}
@@ -0,0 +1,160 @@
+package fi.essentia.somacms.util;
+
+import com.google.common.io.Files;
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.models.DatabaseDocument;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RenditionCacheTest {
+    private RenditionCache renditionCache;
+    private File directory;
+    private DatabaseDocument photo;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDir();
+        renditionCache = new RenditionCache();
+        renditionCache.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        renditionCache.directory = directory.getAbsolutePath();
+        photo = new DatabaseDocument(7, "photo.jpg", false);
+        photo.setMimeType("image/jpeg");
+        photo.setContentHash("abc");
+        when(renditionCache.readOnlyDataDao.loadData(7, 0)).thenReturn(png(400, 200));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void makesEachRenditionOnce() throws Exception {
+        renditionCache.initialize();
+        File file = renditionCache.rendition(photo, rendition("100", null, null));
+        assertSame(file, renditionCache.rendition(photo, rendition("100", null, null)));
+        verify(renditionCache.readOnlyDataDao, times(1)).loadData(7, 0);
+
+        BufferedImage image = ImageIO.read(file);
+        assertEquals(100, image.getWidth());
+        assertEquals(50, image.getHeight());
+        assertTrue(file.getName().endsWith(".jpg"));
+
+        BufferedImage cropped = ImageIO.read(renditionCache.rendition(photo, rendition("80", "80", "true")));
+        assertEquals(80, cropped.getWidth());
+        assertEquals(80, cropped.getHeight());
+
+        // Found again after a restart
+        renditionCache = new RenditionCache();
+        renditionCache.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        renditionCache.directory = directory.getAbsolutePath();
+        renditionCache.initialize();
+        assertEquals(file, renditionCache.rendition(photo, rendition("100", null, null)));
+    }
+
+    @Test
+    public void removesLeastRecentlyUsed() throws Exception {
+        renditionCache.maxBytes = 1;
+        renditionCache.initialize();
+        File first = renditionCache.rendition(photo, rendition("100", null, null));
+        renditionCache.rendition(photo, rendition("50", null, null));
+        assertFalse(first.exists());
+        assertTrue(renditionCache.getBytes() > 0);
+    }
+
+    @Test
+    public void limitsConcurrentRescaling() throws Exception {
+        renditionCache.maxConcurrent = 1;
+        renditionCache.waitMillis = 10;
+        renditionCache.initialize();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final byte[] image = png(400, 200);
+        when(renditionCache.readOnlyDataDao.loadData(7, 0)).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return image;
+            }
+        });
+
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    renditionCache.rendition(photo, rendition("100", null, null));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        slow.start();
+        started.await();
+        try {
+            renditionCache.rendition(photo, rendition("200", null, null));
+            fail();
+        } catch (RenditionCache.RenditionBusyException e) {
+            // Expected
+        }
+        release.countDown();
+        slow.join();
+    }
+
+    @Test
+    public void decodesLargeImagesAtLowerResolution() throws Exception {
+        renditionCache.maxPixels = 20000;
+        renditionCache.initialize();
+        BufferedImage image = ImageIO.read(renditionCache.rendition(photo, rendition("300", null, null)));
+        assertEquals(200, image.getWidth());
+        assertEquals(100, image.getHeight());
+
+        assertEquals(1, ImageScaler.subsampling(400, 200, 80000));
+        assertEquals(3, ImageScaler.subsampling(401, 200, 20000));
+        assertEquals(1000, ImageScaler.subsampling(100000, 100000, 10000));
+    }
+
+    @Test
+    public void rejectsInvalidParameters() {
+        assertNull(Rendition.parse(null, null, null, "50", 1000));
+        for (String[] parameters : new String[][] {{"0", null, null}, {"2000", null, null}, {"abc", null, null}, {"100", null, "true"}}) {
+            try {
+                Rendition.parse(parameters[0], parameters[1], parameters[2], null, 1000);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static Rendition rendition(String width, String height, String crop) {
+        return Rendition.parse(width, height, crop, null, 1000);
+    }
+
+    private static byte[] png(int width, int height) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", bytes);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,81 @@
+package fi.essentia.somacms.util;
+
+import fi.essentia.somacms.dao.ReadOnlyDataDao;
+import fi.essentia.somacms.dao.ThumbnailDao;
+import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.models.Thumbnail;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThumbnailGeneratorTest {
+    private ThumbnailGenerator thumbnailGenerator;
+    private DatabaseDocument image;
+
+    @Before
+    public void setup() {
+        thumbnailGenerator = new ThumbnailGenerator();
+        thumbnailGenerator.thumbnailDao = mock(ThumbnailDao.class);
+        thumbnailGenerator.readOnlyDataDao = mock(ReadOnlyDataDao.class);
+        image = new DatabaseDocument(5, "photo.png", false);
+        image.setMimeType("image/png");
+        image.setContentHash("abc");
+    }
+
+    @Test
+    public void usesStoredThumbnailOfSameContents() {
+        Thumbnail stored = new Thumbnail();
+        when(thumbnailGenerator.thumbnailDao.findThumbnail(5, "abc")).thenReturn(stored);
+        assertSame(stored, thumbnailGenerator.thumbnail(image));
+        verify(thumbnailGenerator.readOnlyDataDao, never()).loadData(anyLong(), anyInt());
+    }
+
+    @Test
+    public void scalesImageKeepingAspectRatio() throws Exception {
+        when(thumbnailGenerator.readOnlyDataDao.loadData(5, 0)).thenReturn(png(400, 200, BufferedImage.TYPE_INT_RGB));
+        Thumbnail thumbnail = thumbnailGenerator.thumbnail(image);
+
+        assertEquals("abc", thumbnail.getContent_hash());
+        assertEquals("image/jpeg", thumbnail.getMime_type());
+        BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(thumbnail.getData()));
+        assertEquals(64, scaled.getWidth());
+        assertEquals(32, scaled.getHeight());
+        verify(thumbnailGenerator.thumbnailDao).storeThumbnail(thumbnail);
+    }
+
+    @Test
+    public void keepsTransparencyAndNeverScalesUp() throws Exception {
+        Thumbnail thumbnail = thumbnailGenerator.generate(image, png(20, 10, BufferedImage.TYPE_INT_ARGB));
+        assertEquals("image/png", thumbnail.getMime_type());
+        BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(thumbnail.getData()));
+        assertEquals(20, scaled.getWidth());
+        assertTrue(scaled.getColorModel().hasAlpha());
+    }
+
+    @Test
+    public void remembersUnreadableImages() {
+        Thumbnail thumbnail = thumbnailGenerator.generate(image, "<svg/>".getBytes());
+        assertTrue(thumbnail.isEmpty());
+        verify(thumbnailGenerator.thumbnailDao).storeThumbnail(thumbnail);
+    }
+
+    private static byte[] png(int width, int height, int type) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, type), "png", bytes);
+        return bytes.toByteArray();
+    }
+}
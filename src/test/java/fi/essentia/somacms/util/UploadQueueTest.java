@@ -0,0 +1,183 @@
+package fi.essentia.somacms.util;
+
+import com.google.common.hash.Hashing;
+import fi.essentia.somacms.json.Imported;
+import fi.essentia.somacms.json.UploadStatus;
+import fi.essentia.somacms.models.DatabaseDocument;
+import fi.essentia.somacms.tree.DocumentManager;
+import fi.essentia.somacms.tree.TreeDocument;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UploadQueueTest {
+    private UploadQueue uploadQueue;
+    private TreeDocument folder;
+    private TreeDocument page;
+
+    @Before
+    public void setup() {
+        TreeDocument root = new TreeDocument(new DatabaseDocument(TreeDocument.ROOT_ID, "root", true));
+        folder = new TreeDocument(new DatabaseDocument(1, "folder", true));
+        folder.setParentId(root.getId());
+        page = new TreeDocument(new DatabaseDocument(2, "page.html", false));
+        page.setParentId(folder.getId());
+
+        uploadQueue = new UploadQueue();
+        uploadQueue.documentManager = mock(DocumentManager.class);
+        uploadQueue.archiveHelper = mock(ArchiveHelper.class);
+        uploadQueue.thumbnailGenerator = mock(ThumbnailGenerator.class);
+        when(uploadQueue.documentManager.documentById(folder.getId())).thenReturn(folder);
+        uploadQueue.threads = 1;
+        uploadQueue.queueSize = 1;
+        uploadQueue.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        uploadQueue.destroy();
+    }
+
+    @Test
+    public void storesFileInBackground() throws Exception {
+        final AtomicReference<File> spooled = new AtomicReference<File>();
+        when(uploadQueue.documentManager.storeDocument(anyLong(), anyString(), any(byte[].class), anyString())).thenAnswer(new Answer<TreeDocument>() {
+            @Override
+            public TreeDocument answer(InvocationOnMock invocation) {
+                assertEquals("<html>Replaced</html>", new String((byte[]) invocation.getArguments()[2]));
+                return page;
+            }
+        });
+
+        UploadStatus queued = uploadQueue.submit(page, upload("page.html", "text/html", "<html>Replaced</html>", spooled));
+        assertEquals("page.html", queued.getFileName());
+        UploadStatus status = waitFor(queued.getJobId());
+        assertEquals(UploadStatus.DONE, status.getState());
+        assertEquals((Long) page.getId(), status.getDocumentId());
+        assertFalse(spooled.get().exists());
+        assertEquals(1, uploadQueue.statistics().getCompleted());
+        assertEquals(1, uploadQueue.statistics().getStages().get(UploadQueue.STAGE_STORE).getCount());
+    }
+
+    @Test
+    public void skipsUnchangedFileWithoutReadingIt() throws Exception {
+        folder.addChild(page);
+        page.setContentHash(Hashing.sha1().hashBytes("<html>Same</html>".getBytes()).toString());
+
+        UploadStatus status = waitFor(uploadQueue.submit(page, upload("page.html", "text/html", "<html>Same</html>", null)).getJobId());
+        assertEquals(UploadStatus.DONE, status.getState());
+        assertEquals(1, status.getSkipped());
+        assertEquals((Long) page.getId(), status.getDocumentId());
+        verify(uploadQueue.documentManager, never()).storeDocument(anyLong(), anyString(), any(byte[].class), anyString());
+        assertEquals(1, uploadQueue.statistics().getStages().get(UploadQueue.STAGE_HASH).getCount());
+        assertEquals(0, uploadQueue.statistics().getStages().get(UploadQueue.STAGE_READ).getCount());
+    }
+
+    @Test
+    public void forgetsFinishedJobsWhenPolled() throws Exception {
+        when(uploadQueue.documentManager.storeDocument(anyLong(), anyString(), any(byte[].class), anyString())).thenReturn(page);
+        long jobId = waitFor(uploadQueue.submit(folder, upload("page.html", "text/html", "page", null)).getJobId()).getJobId();
+        uploadQueue.retainMillis = 0;
+        Thread.sleep(10);
+        assertNull(uploadQueue.status(jobId));
+    }
+
+    @Test
+    public void importsArchiveToFolder() throws Exception {
+        when(uploadQueue.archiveHelper.storeDocuments(eq(folder), any(InputStream.class))).thenReturn(new Imported(3, 1));
+        UploadStatus status = waitFor(uploadQueue.submit(folder, upload("site.zip", "application/zip", "PK", null)).getJobId());
+        assertEquals(UploadStatus.DONE, status.getState());
+        assertEquals(3, status.getStored());
+        assertEquals(1, status.getSkipped());
+    }
+
+    @Test
+    public void rejectsUploadsWhenQueueIsFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(uploadQueue.documentManager.storeDocument(anyLong(), anyString(), any(byte[].class), anyString())).thenAnswer(new Answer<TreeDocument>() {
+            @Override
+            public TreeDocument answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return page;
+            }
+        });
+
+        long first = uploadQueue.submit(folder, upload("first.html", "text/html", "first", null)).getJobId();
+        started.await();
+        long second = uploadQueue.submit(folder, upload("second.html", "text/html", "second", null)).getJobId();
+        assertEquals(1, uploadQueue.statistics().getQueued());
+        try {
+            uploadQueue.submit(folder, upload("third.html", "text/html", "third", null));
+            fail();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        release.countDown();
+        assertEquals(UploadStatus.DONE, waitFor(first).getState());
+        assertEquals(UploadStatus.DONE, waitFor(second).getState());
+    }
+
+    @Test
+    public void reportsFailure() throws Exception {
+        when(uploadQueue.documentManager.storeDocument(anyLong(), anyString(), any(byte[].class), anyString())).thenThrow(new IllegalStateException("Broken"));
+        UploadStatus status = waitFor(uploadQueue.submit(folder, upload("broken.html", "text/html", "broken", null)).getJobId());
+        assertEquals(UploadStatus.FAILED, status.getState());
+        assertEquals("Broken", status.getError());
+        assertEquals(1, uploadQueue.statistics().getFailed());
+    }
+
+    private UploadStatus waitFor(long jobId) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            UploadStatus status = uploadQueue.status(jobId);
+            if (status.getState().equals(UploadStatus.DONE) || status.getState().equals(UploadStatus.FAILED)) {
+                return status;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("Upload " + jobId + " didn't finish");
+    }
+
+    private static MultipartFile upload(String name, String contentType, final String contents, final AtomicReference<File> spooled) throws Exception {
+        MultipartFile file = mock(MultipartFile.class);
+        when(file.getOriginalFilename()).thenReturn(name);
+        when(file.getContentType()).thenReturn(contentType);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                File destination = (File) invocation.getArguments()[0];
+                FileUtils.writeStringToFile(destination, contents);
+                if (spooled != null) {
+                    spooled.set(destination);
+                }
+                return null;
+            }
+        }).when(file).transferTo(any(File.class));
+        return file;
+    }
+}